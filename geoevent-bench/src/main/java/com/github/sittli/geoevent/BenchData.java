@@ -0,0 +1,85 @@
+package com.github.sittli.geoevent;
+
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import org.apache.avro.specific.SpecificRecord;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Shared setup of the benchmarks
+ * - serdes against an in-memory (mock) schema registry, i.e. no broker and no registry needed
+ * - synthetic addresses and key distributions (uniform or zipf)
+ * */
+public class BenchData {
+
+    static final String MOCK_SCHEMA_REGISTRY_URL = "mock://geo-bench";
+
+    private static final String[] STREETS = {"Rathausmarkt", "Jungfernstieg", "Mönckebergstraße", "Große Bergstraße", "Marienplatz"};
+    private static final String[] CITIES = {"20095 Hamburg", "80331 München", "10117 Berlin", "50667 Köln"};
+
+    private BenchData() {
+    }
+
+    static Map<String, String> serdeConfig() {
+        return Collections.singletonMap("schema.registry.url", MOCK_SCHEMA_REGISTRY_URL);
+    }
+
+    static <T extends SpecificRecord> SpecificAvroSerde<T> specificSerde() {
+        final SpecificAvroSerde<T> serde = new SpecificAvroSerde<>();
+        serde.configure(serdeConfig(), false);
+        return serde;
+    }
+
+    /*
+     * a (raw, i.e. not canonical) address per index; 'prefix' separates e.g. known from unknown addresses
+     * */
+    static String address(String prefix, int i) {
+        return STREETS[i % STREETS.length] + " " + (i / STREETS.length + 1) + prefix + ", " + CITIES[i % CITIES.length];
+    }
+
+    /*
+     * draws indexes in [0, n) either uniformly or zipf distributed (rank 0 is the most frequent)
+     * */
+    static class KeyDistribution {
+
+        private final Random random;
+        private final int n;
+        private final double[] cumulative;
+
+        KeyDistribution(String name, int n, double exponent, long seed) {
+            this.random = new Random(seed);
+            this.n = n;
+            if ("zipf".equalsIgnoreCase(name)) {
+                cumulative = new double[n];
+                double sum = 0;
+                for (int i = 0; i < n; i++) {
+                    sum += 1 / Math.pow(i + 1, exponent);
+                    cumulative[i] = sum;
+                }
+                for (int i = 0; i < n; i++) {
+                    cumulative[i] /= sum;
+                }
+            } else if ("uniform".equalsIgnoreCase(name)) {
+                cumulative = null;
+            } else {
+                throw new IllegalArgumentException("unknown key distribution: " + name);
+            }
+        }
+
+        int next() {
+            if (cumulative == null) {
+                return random.nextInt(n);
+            }
+            final int i = Arrays.binarySearch(cumulative, random.nextDouble());
+            return Math.min(n - 1, i >= 0 ? i : -i - 1);
+        }
+
+        boolean nextBoolean(double probability) {
+            return random.nextDouble() < probability;
+        }
+    }
+
+}
@@ -0,0 +1,202 @@
+package com.github.sittli.geoevent;
+
+import com.github.sittli.geodata.Event;
+import com.github.sittli.geodata.EventEnriched;
+import com.github.sittli.geodata.EventRequest;
+import com.github.sittli.geodata.EventResponse;
+import com.google.maps.model.LatLng;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TestOutputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/*
+ * End-to-end throughput / latency harness of GeoStreamApp's topology (offline: TopologyTestDriver, mock schema registry)
+ * - the lookup service is played by the harness: every lookup request is answered with the SimulatorGeocoder
+ * - hits: events whose address is in the geo data (loaded upfront); their addresses follow the key distribution
+ * - misses: events with an unknown address (a new one each, or drawn from bench.miss.addresses with the key distribution)
+ * - latency: per event, from piping it in until its enriched output is produced (incl. the simulated lookup for misses);
+ *   the time spent in the harness itself (draining the output topics) is not counted
+ * settings (system properties): bench.events, bench.warmup, bench.addresses, bench.hit.ratio, bench.distribution (uniform|zipf),
+ *   bench.zipf.exponent, bench.miss.addresses, bench.store.mode (global|partitioned)
+ * */
+public class EnrichmentHarness {
+
+    private final int events;
+    private final int warmup;
+    private final int addresses;
+    private final double hitRatio;
+    private final String distribution;
+    private final double zipfExponent;
+    private final int missAddresses;
+    private final String storeMode;
+
+    private final AddressCanonicalizer canonicalizer = new DefaultAddressCanonicalizer();
+    private final Geocoder simulator = new SimulatorGeocoder();
+    private TestInputTopic<String, Event> eventTopic;
+    private TestInputTopic<String, EventResponse> responseTopic;
+    private TestOutputTopic<String, EventRequest> requestTopic;
+    private final List<TestOutputTopic<byte[], byte[]>> drainedTopics = new ArrayList<>();
+    private long missSequence;
+
+    EnrichmentHarness(Properties settings) {
+        this.events = Integer.parseInt(settings.getProperty("bench.events", "100000"));
+        this.warmup = Integer.parseInt(settings.getProperty("bench.warmup", "20000"));
+        this.addresses = Integer.parseInt(settings.getProperty("bench.addresses", "10000"));
+        this.hitRatio = Double.parseDouble(settings.getProperty("bench.hit.ratio", "0.9"));
+        this.distribution = settings.getProperty("bench.distribution", "uniform");
+        this.zipfExponent = Double.parseDouble(settings.getProperty("bench.zipf.exponent", "1.0"));
+        this.missAddresses = Integer.parseInt(settings.getProperty("bench.miss.addresses", "0"));
+        this.storeMode = settings.getProperty("bench.store.mode", "global");
+    }
+
+    public static void main(String[] args) throws Exception {
+        new EnrichmentHarness(System.getProperties()).run();
+    }
+
+    void run() throws Exception {
+        final Properties cfg = new Properties();
+        cfg.put(StreamsConfig.APPLICATION_ID_CONFIG, "geo-streams-bench");
+        cfg.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:9092");
+        cfg.put(StreamsConfig.STATE_DIR_CONFIG, Files.createTempDirectory("geo-bench").toString());
+        cfg.put(StreamsConfig.DEFAULT_KEY_SERDE_CLASS_CONFIG, Serdes.String().getClass());
+        cfg.put(StreamsConfig.DEFAULT_VALUE_SERDE_CLASS_CONFIG, SpecificAvroSerde.class);
+        cfg.put(StreamsConfig.TOPOLOGY_OPTIMIZATION, StreamsConfig.OPTIMIZE);
+        cfg.put("schema.registry.url", BenchData.MOCK_SCHEMA_REGISTRY_URL);
+        cfg.put(GeoStreamApp.STORE_MODE_CONFIG, storeMode);
+
+        try (TopologyTestDriver driver = new TopologyTestDriver(GeoStreamApp.buildTopology(cfg, BenchData.serdeConfig()), cfg)) {
+            final StringSerializer keySerializer = new StringSerializer();
+            eventTopic = driver.createInputTopic(GeoStreamApp.GEO_EVENTDATA_TOPIC, keySerializer,
+                    BenchData.<Event>specificSerde().serializer());
+            responseTopic = driver.createInputTopic(GeoStreamApp.GEO_EVENTDATA_RESPONSE_TOPIC, keySerializer,
+                    BenchData.<EventResponse>specificSerde().serializer());
+            requestTopic = driver.createOutputTopic(GeoStreamApp.GEO_EVENTDATA_REQUEST_TOPIC, new StringDeserializer(),
+                    BenchData.<EventRequest>specificSerde().deserializer());
+            final List<String> drained = new ArrayList<>(Arrays.asList(GeoStreamApp.GEO_EVENTDATA_ENRICHED_TOPIC,
+                    GeoStreamApp.GEO_EVENTDATA_STORE_TOPIC, GeoStreamApp.GEO_EVENTDATA_FAILED_TOPIC));
+// the pending topic only exists with a global store (repartitioning of the misses)
+            if (!"partitioned".equalsIgnoreCase(storeMode)) {
+                drained.add(GeoStreamApp.GEO_EVENTDATA_PENDING_STORE_TOPIC);
+            }
+            for (String topic : drained) {
+                drainedTopics.add(driver.createOutputTopic(topic, new ByteArrayDeserializer(), new ByteArrayDeserializer()));
+            }
+
+// the geo data of the known addresses
+            final TestInputTopic<String, EventEnriched> storeTopic = driver.createInputTopic(GeoStreamApp.GEO_EVENTDATA_STORE_TOPIC,
+                    keySerializer, BenchData.<EventEnriched>specificSerde().serializer());
+            for (int i = 0; i < addresses; i++) {
+                final String address = BenchData.address("", i);
+                final String key = canonicalizer.canonicalize(address);
+                final LatLng location = simulator.geocode(address, key);
+                storeTopic.pipeInput(key, new EventEnriched(address, "init", location.lat, location.lng));
+            }
+
+            final BenchData.KeyDistribution keys = new BenchData.KeyDistribution(distribution, addresses, zipfExponent, 42);
+            final BenchData.KeyDistribution missKeys = missAddresses > 0
+                    ? new BenchData.KeyDistribution(distribution, missAddresses, zipfExponent, 43) : null;
+
+            drive(keys, missKeys, warmup, null, null, new int[2]);
+            final long[] hitNanos = new long[events];
+            final long[] missNanos = new long[events];
+            final int[] counts = new int[2];
+            final double joinHits = metric(driver.metrics(), "join-hit-total");
+            final double joinMisses = metric(driver.metrics(), "join-miss-total");
+            final long start = System.nanoTime();
+            drive(keys, missKeys, events, hitNanos, missNanos, counts);
+            final long elapsed = System.nanoTime() - start;
+            final double measuredHits = metric(driver.metrics(), "join-hit-total") - joinHits;
+            final double measuredMisses = metric(driver.metrics(), "join-miss-total") - joinMisses;
+
+            System.out.printf("events: %d (warmup %d), store mode: %s, addresses: %d, distribution: %s%s, miss addresses: %s%n",
+                    events, warmup, storeMode, addresses, distribution,
+                    "zipf".equalsIgnoreCase(distribution) ? "(" + zipfExponent + ")" : "",
+                    missAddresses > 0 ? String.valueOf(missAddresses) : "new per event");
+// Note: with a pool of miss addresses, resolved misses become hits (the measured ratio is higher than configured)
+            System.out.printf("hit ratio: %.3f configured, %.3f measured (join metrics)%n",
+                    hitRatio, measuredHits / (measuredHits + measuredMisses));
+            System.out.printf("throughput: %.0f events/s%n", events / (elapsed / 1e9));
+            report("latency hits   [us]", hitNanos, counts[0]);
+            report("latency misses [us]", missNanos, counts[1]);
+        }
+    }
+
+    /*
+     * pipes n events; records the latency per event in hitNanos / missNanos (if not null), counts: [hits, misses]
+     * */
+    private void drive(BenchData.KeyDistribution keys, BenchData.KeyDistribution missKeys, int n,
+                       long[] hitNanos, long[] missNanos, int[] counts) {
+        for (int i = 0; i < n; i++) {
+            final boolean hit = keys.nextBoolean(hitRatio);
+            final String address = hit ? BenchData.address("", keys.next())
+                    : BenchData.address("-unknown", missKeys != null ? missKeys.next() : (int) missSequence++);
+            final Event event = new Event(address, "storm");
+
+            final long start = System.nanoTime();
+            eventTopic.pipeInput(null, event, System.currentTimeMillis());
+            long nanos = System.nanoTime() - start;
+// play the lookup service (not timed)
+            final List<KeyValue<String, EventRequest>> requests = requestTopic.readKeyValuesToList();
+            if (!requests.isEmpty()) {
+                final long respond = System.nanoTime();
+                for (KeyValue<String, EventRequest> request : requests) {
+                    final LatLng location = simulator.geocode(request.value.getAddress(), request.key);
+                    responseTopic.pipeInput(request.key, new EventResponse(request.value.getAddress(), location.lat, location.lng));
+                }
+                nanos += System.nanoTime() - respond;
+            }
+            for (TestOutputTopic<byte[], byte[]> topic : drainedTopics) {
+                while (!topic.isEmpty()) {
+                    topic.readRecord();
+                }
+            }
+            if (hitNanos != null) {
+                if (hit) {
+                    hitNanos[counts[0]++] = nanos;
+                } else {
+                    missNanos[counts[1]++] = nanos;
+                }
+            }
+        }
+    }
+
+    private static void report(String label, long[] nanos, int count) {
+        if (count == 0) {
+            System.out.printf("%s: -%n", label);
+            return;
+        }
+        final long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        System.out.printf("%s: p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f (%d events)%n", label,
+                percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99), percentile(sorted, 99.9),
+                sorted[count - 1] / 1e3, count);
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p / 100 * sorted.length) - 1)] / 1e3;
+    }
+
+    private static double metric(Map<MetricName, ? extends Metric> metrics, String name) {
+        return metrics.entrySet().stream()
+                .filter(e -> e.getKey().name().equals(name) && e.getKey().group().equals(GeoStreamMetrics.GROUP))
+                .mapToDouble(e -> (Double) e.getValue().metricValue())
+                .sum();
+    }
+
+}
@@ -0,0 +1,113 @@
+package com.github.sittli.geoevent;
+
+import com.google.maps.model.LatLng;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * lookups of the local backends (gazetteer index with 'addresses' entries, simulator) and of a chain gazetteer -> simulator
+ * - hit: a (raw) address of the index, miss: an address that is not in the index
+ * - the canonical keys are computed upfront, as GeocodeCache passes them to the backends
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GeocoderBenchmark {
+
+    private static final int RING_SIZE = 1 << 12;
+
+    @Param({"10000", "1000000"})
+    public int addresses;
+
+    private Path index;
+    private GazetteerGeocoder gazetteer;
+    private SimulatorGeocoder simulator;
+    private ChainedGeocoder chain;
+    private String[] hits;
+    private String[] hitKeys;
+    private String[] misses;
+    private String[] missKeys;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        final AddressCanonicalizer canonicalizer = new DefaultAddressCanonicalizer();
+        simulator = new SimulatorGeocoder();
+        final GazetteerIndexBuilder builder = new GazetteerIndexBuilder(canonicalizer);
+        for (int i = 0; i < addresses; i++) {
+            final String address = BenchData.address("", i);
+            final LatLng location = simulator.geocode(address, canonicalizer.canonicalize(address));
+            builder.add(address, location.lat, location.lng);
+        }
+        index = Files.createTempFile("geo-gazetteer", ".idx");
+        builder.write(index);
+        gazetteer = new GazetteerGeocoder(index, canonicalizer);
+        chain = new ChainedGeocoder(Arrays.asList(gazetteer, simulator));
+
+        final BenchData.KeyDistribution keys = new BenchData.KeyDistribution("uniform", addresses, 0, 42);
+        hits = new String[RING_SIZE];
+        hitKeys = new String[RING_SIZE];
+        misses = new String[RING_SIZE];
+        missKeys = new String[RING_SIZE];
+        for (int i = 0; i < RING_SIZE; i++) {
+            hits[i] = BenchData.address("", keys.next());
+            hitKeys[i] = canonicalizer.canonicalize(hits[i]);
+            misses[i] = BenchData.address("-unknown", keys.next());
+            missKeys[i] = canonicalizer.canonicalize(misses[i]);
+        }
+    }
+
+    @Benchmark
+    public Object gazetteerHit() {
+        final int i = next++ & (RING_SIZE - 1);
+        return gazetteer.geocode(hits[i], hitKeys[i]);
+    }
+
+    @Benchmark
+    public Object gazetteerMiss() {
+        try {
+            final int i = next++ & (RING_SIZE - 1);
+            return gazetteer.geocode(misses[i], missKeys[i]);
+        } catch (UnresolvableAddressException e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object simulator() {
+        final int i = next++ & (RING_SIZE - 1);
+        return simulator.geocode(hits[i], hitKeys[i]);
+    }
+
+    @Benchmark
+    public Object chainMiss() {
+        final int i = next++ & (RING_SIZE - 1);
+        return chain.geocode(misses[i], missKeys[i]);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        chain.close();
+        Files.deleteIfExists(index);
+    }
+
+}
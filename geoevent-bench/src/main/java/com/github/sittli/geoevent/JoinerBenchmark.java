@@ -0,0 +1,59 @@
+package com.github.sittli.geoevent;
+
+import com.github.sittli.geodata.Event;
+import com.github.sittli.geodata.EventEnriched;
+import com.github.sittli.geodata.EventResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * the ValueJoiners of GeoStreamApp (geo data join: hit / miss; response join)
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class JoinerBenchmark {
+
+    private Event event;
+    private EventEnriched geo;
+    private EventEnriched pending;
+    private EventResponse response;
+
+    @Setup
+    public void setUp() {
+        final String address = BenchData.address("", 0);
+        event = new Event(address, "storm");
+        geo = new EventEnriched(address, "rain", 53.5503, 9.9920);
+        pending = new EventEnriched(address, "storm", null, null);
+        response = new EventResponse(address, 53.5503, 9.9920);
+    }
+
+    @Benchmark
+    public EventEnriched enrichHit() {
+        return GeoStreamApp.enrich(event, geo);
+    }
+
+    @Benchmark
+    public EventEnriched enrichMiss() {
+        return GeoStreamApp.enrich(event, null);
+    }
+
+    @Benchmark
+    public EventEnriched resolve() {
+        return GeoStreamApp.resolve(response, pending);
+    }
+
+}
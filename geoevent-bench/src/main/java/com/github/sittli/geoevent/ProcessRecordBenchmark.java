@@ -0,0 +1,114 @@
+package com.github.sittli.geoevent;
+
+import com.github.sittli.geodata.EventRequest;
+import io.confluent.kafka.serializers.KafkaAvroSerializer;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * GeoEventApp's record processing path (canonical key, cache, geocoder, response record, send)
+ * - the geocoder is the simulator, the producer a MockProducer (serializing with the mock schema registry)
+ * - cacheHitRatio: share of records with an address that is in the geocode cache; the others have a new address each
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProcessRecordBenchmark {
+
+    private static final int HOT_ADDRESSES = 1000;
+    private static final int RING_SIZE = 1 << 16;
+
+    @Param({"1.0", "0.9", "0.0"})
+    public double cacheHitRatio;
+
+    private GeoEventApp app;
+    private MockProducer<String, GenericRecord> producer;
+    private ConsumerRecord<String, Object>[] hits;
+    private GenericRecord miss;
+    private boolean[] hit;
+    private int next;
+    private long missCounter;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        final Properties cfg = new Properties();
+        cfg.put("schema.registry.url", BenchData.MOCK_SCHEMA_REGISTRY_URL);
+        cfg.put(Geocoder.BACKENDS_CONFIG, Geocoder.SIMULATOR);
+        final KafkaAvroSerializer valueSerializer = new KafkaAvroSerializer();
+        valueSerializer.configure(BenchData.serdeConfig(), false);
+// KafkaAvroSerializer is a Serializer<Object>
+        final Serializer<GenericRecord> recordSerializer = valueSerializer::serialize;
+        producer = new MockProducer<>(true, new StringSerializer(), recordSerializer);
+        app = new GeoEventApp();
+        app.configure(cfg, producer);
+
+        hits = (ConsumerRecord<String, Object>[]) new ConsumerRecord<?, ?>[HOT_ADDRESSES];
+        for (int i = 0; i < HOT_ADDRESSES; i++) {
+            hits[i] = record(BenchData.address("", i));
+// warm the cache
+            app.processRecord(hits[i], null);
+        }
+        miss = new GenericData.Record(EventRequest.getClassSchema());
+        final BenchData.KeyDistribution distribution = new BenchData.KeyDistribution("uniform", HOT_ADDRESSES, 0, 42);
+        hit = new boolean[RING_SIZE];
+        for (int i = 0; i < RING_SIZE; i++) {
+            hit[i] = distribution.nextBoolean(cacheHitRatio);
+        }
+    }
+
+    private static ConsumerRecord<String, Object> record(String address) {
+        final GenericRecord request = new GenericData.Record(EventRequest.getClassSchema());
+        request.put("address", address);
+        return new ConsumerRecord<>(GeoEventApp.INBOUND_TOPIC, 0, 0, address, request);
+    }
+
+    @Benchmark
+    public void processRecord() {
+        final int i = next++ & (RING_SIZE - 1);
+        if (hit[i]) {
+            app.processRecord(hits[i % HOT_ADDRESSES], null);
+        } else {
+// a new address every time (the record is reused, only the address changes)
+            final String address = BenchData.address("-" + missCounter++, i);
+            miss.put("address", address);
+            app.processRecord(new ConsumerRecord<>(GeoEventApp.INBOUND_TOPIC, 0, 0, address, miss), null);
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void clearHistory() {
+        producer.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        GeoEventApp.geocoder.close();
+        GeoEventApp.lookupMetrics.close();
+        GeoEventApp.geoApiContext.shutdown();
+    }
+
+}
@@ -0,0 +1,75 @@
+package com.github.sittli.geoevent;
+
+import com.github.sittli.geodata.Event;
+import com.github.sittli.geodata.EventEnriched;
+import com.github.sittli.geodata.EventResponse;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import org.apache.avro.specific.SpecificRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * serde round trips of the topic/store values (SpecificAvroSerde, mock schema registry)
+ * */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerdeBenchmark {
+
+    private static final String TOPIC = "geo_bench";
+
+    @Param({"Event", "EventEnriched", "EventResponse"})
+    public String type;
+
+    private SpecificAvroSerde<SpecificRecord> serde;
+    private SpecificRecord value;
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        final String address = BenchData.address("", 0);
+        switch (type) {
+            case "Event":
+                value = new Event(address, "storm");
+                break;
+            case "EventEnriched":
+                value = new EventEnriched(address, "storm", 53.5503, 9.9920);
+                break;
+            default:
+                value = new EventResponse(address, 53.5503, 9.9920);
+        }
+        serde = BenchData.specificSerde();
+// registers the schema (once)
+        bytes = serde.serializer().serialize(TOPIC, value);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        return serde.serializer().serialize(TOPIC, value);
+    }
+
+    @Benchmark
+    public SpecificRecord deserialize() {
+        return serde.deserializer().deserialize(TOPIC, bytes);
+    }
+
+    @Benchmark
+    public SpecificRecord roundTrip() {
+        return serde.deserializer().deserialize(TOPIC, serde.serializer().serialize(TOPIC, value));
+    }
+
+}
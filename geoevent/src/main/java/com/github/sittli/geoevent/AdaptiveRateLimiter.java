@@ -0,0 +1,112 @@
+package com.github.sittli.geoevent;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * AIMD-controlled token bucket in front of the (external) geocoder
+ * - every call to the geocoder needs a permit (acquire blocks until one is available)
+ * - the rate grows additively (about +increase permits/s per second) as long as calls succeed within the target latency
+ * - the rate is cut multiplicatively on errors (e.g. quota exceeded) or slow responses, at most once per cool down period
+ * - saturated() tells the poll loop to stop fetching (pause) instead of queueing more work than the current rate can serve
+ * */
+public class AdaptiveRateLimiter {
+
+    static final String INITIAL_RATE_CONFIG = "lookup.rate.initial";
+    static final String MIN_RATE_CONFIG = "lookup.rate.min";
+    static final String MAX_RATE_CONFIG = "lookup.rate.max";
+    static final String INCREASE_CONFIG = "lookup.rate.increase";
+    static final String TARGET_LATENCY_MS_CONFIG = "lookup.rate.target.latency.ms";
+    static final String MAX_BACKLOG_SECONDS_CONFIG = "lookup.rate.max.backlog.seconds";
+
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final long COOL_DOWN_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final double minRate;
+    private final double maxRate;
+    private final double increase;
+    private final long targetLatencyNanos;
+    private final double maxBacklogSeconds;
+
+    private double rate;
+    private double tokens;
+    private long lastRefillNanos;
+    private long lastDecreaseNanos;
+
+    public AdaptiveRateLimiter(double initialRate, double minRate, double maxRate, double increase,
+                               long targetLatencyMs, double maxBacklogSeconds) {
+        this.minRate = minRate;
+        this.maxRate = maxRate;
+        this.increase = increase;
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMs);
+        this.maxBacklogSeconds = maxBacklogSeconds;
+        this.rate = Math.max(minRate, Math.min(maxRate, initialRate));
+        this.tokens = 1;
+        this.lastRefillNanos = System.nanoTime();
+        this.lastDecreaseNanos = lastRefillNanos - COOL_DOWN_NANOS;
+    }
+
+    public static AdaptiveRateLimiter fromConfig(Properties cfg) {
+        return new AdaptiveRateLimiter(
+                Double.parseDouble(cfg.getProperty(INITIAL_RATE_CONFIG, "10")),
+                Double.parseDouble(cfg.getProperty(MIN_RATE_CONFIG, "1")),
+                Double.parseDouble(cfg.getProperty(MAX_RATE_CONFIG, "50")),
+                Double.parseDouble(cfg.getProperty(INCREASE_CONFIG, "1")),
+                Long.parseLong(cfg.getProperty(TARGET_LATENCY_MS_CONFIG, "500")),
+                Double.parseDouble(cfg.getProperty(MAX_BACKLOG_SECONDS_CONFIG, "5")));
+    }
+
+    /*
+     * block until a permit is available
+     * */
+    public synchronized void acquire() throws InterruptedException {
+        refill();
+        while (tokens < 1) {
+            long waitNanos = (long) ((1 - tokens) / rate * TimeUnit.SECONDS.toNanos(1));
+            TimeUnit.NANOSECONDS.timedWait(this, Math.max(waitNanos, 1));
+            refill();
+        }
+        tokens -= 1;
+    }
+
+    public synchronized void onSuccess(long latencyNanos) {
+        if (latencyNanos > targetLatencyNanos) {
+            decrease();
+        } else {
+// +increase per second at the current rate
+            rate = Math.min(maxRate, rate + increase / rate);
+        }
+    }
+
+    public synchronized void onError() {
+        decrease();
+    }
+
+    /*
+     * true, if the given number of queued lookups cannot be served within the max. backlog at the current rate
+     * */
+    public synchronized boolean saturated(int queued) {
+        return queued > rate * maxBacklogSeconds;
+    }
+
+    public synchronized double rate() {
+        return rate;
+    }
+
+    private void decrease() {
+        long now = System.nanoTime();
+        if (now - lastDecreaseNanos >= COOL_DOWN_NANOS) {
+            rate = Math.max(minRate, rate * DECREASE_FACTOR);
+            tokens = Math.min(tokens, rate);
+            lastDecreaseNanos = now;
+        }
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+// bucket capacity: one second worth of permits
+        tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefillNanos) * rate / TimeUnit.SECONDS.toNanos(1));
+        lastRefillNanos = now;
+    }
+
+}
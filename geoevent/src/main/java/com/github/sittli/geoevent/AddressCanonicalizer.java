@@ -0,0 +1,31 @@
+package com.github.sittli.geoevent;
+
+import java.util.Properties;
+
+/*
+ * maps the spelling variants of an address to one canonical form (used as key for caches, lookups and stores)
+ * implementations must be thread-safe; the implementation is selected via the external client config
+ * */
+public interface AddressCanonicalizer {
+
+    String CLASS_CONFIG = "address.canonicalizer.class";
+
+    String canonicalize(String address);
+
+    /*
+     * number of addresses that were not canonical, i.e. spelling variants merged into their canonical form (0, if not counted)
+     * */
+    default long rewrittenCount() {
+        return 0;
+    }
+
+    static AddressCanonicalizer fromConfig(Properties cfg) {
+        final String className = cfg.getProperty(CLASS_CONFIG, DefaultAddressCanonicalizer.class.getName());
+        try {
+            return (AddressCanonicalizer) Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("cannot instantiate " + CLASS_CONFIG + "=" + className, e);
+        }
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.github.sittli.geoevent;
+
+import com.google.maps.model.LatLng;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * tries the backends in order (e.g. local gazetteer first, remote geocoder on a miss)
+ * - an address unresolvable by a backend falls through to the next one; only the last backend's answer is final
+ * - a failed call (any other exception) is not retried with the next backend, as that would hide an outage of e.g. the gazetteer
+ * - counts the answers per backend (see GeoEventApp's gauges)
+ * */
+public class ChainedGeocoder implements Geocoder {
+
+    private final List<Geocoder> backends;
+    private final LongAdder[] resolved;
+
+    public ChainedGeocoder(List<Geocoder> backends) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("no geocoder backend");
+        }
+        this.backends = new ArrayList<>(backends);
+        this.resolved = new LongAdder[backends.size()];
+        for (int i = 0; i < resolved.length; i++) {
+            resolved[i] = new LongAdder();
+        }
+    }
+
+    @Override
+    public LatLng geocode(String address, String key) {
+        final int last = backends.size() - 1;
+        for (int i = 0; i < last; i++) {
+            try {
+                final LatLng location = backends.get(i).geocode(address, key);
+                resolved[i].increment();
+                return location;
+            } catch (UnresolvableAddressException e) {
+// ask the next backend
+            }
+        }
+        final LatLng location = backends.get(last).geocode(address, key);
+        resolved[last].increment();
+        return location;
+    }
+
+    public List<Geocoder> backends() {
+        return backends;
+    }
+
+    /*
+     * number of addresses resolved by the i-th backend
+     * */
+    public long resolvedCount(int i) {
+        return resolved[i].sum();
+    }
+
+    @Override
+    public String name() {
+        final StringBuilder sb = new StringBuilder();
+        for (Geocoder backend : backends) {
+            sb.append(sb.length() == 0 ? "" : ",").append(backend.name());
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void close() {
+        backends.forEach(Geocoder::close);
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.github.sittli.geoevent;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * default canonical form of an address
+ * - lower case; umlauts and sharp s folded (ä -> ae, ö -> oe, ü -> ue, ß -> ss)
+ * - unicode compatibility decomposition with diacritics removed (é -> e)
+ * - punctuation replaced by white space, white space collapsed
+ * - tokens sorted, i.e. "Rathausmarkt 1, 20095 Hamburg" and "20095 Hamburg, Rathausmarkt 1" are the same address
+ * Note: an address that already is canonical is returned as is, without any allocation (fast path)
+ * */
+public class DefaultAddressCanonicalizer implements AddressCanonicalizer {
+
+    private final LongAdder canonicalized = new LongAdder();
+    private final LongAdder rewritten = new LongAdder();
+
+    @Override
+    public String canonicalize(String address) {
+        canonicalized.increment();
+        if (isCanonical(address)) {
+            return address;
+        }
+        final String canonical = sortTokens(fold(address));
+        if (!canonical.equals(address)) {
+// a spelling variant got merged into its canonical form
+            rewritten.increment();
+        }
+        return canonical;
+    }
+
+    public long canonicalizedCount() {
+        return canonicalized.sum();
+    }
+
+    @Override
+    public long rewrittenCount() {
+        return rewritten.sum();
+    }
+
+    // [a-z0-9] tokens, separated by single blanks, in ascending order
+    static boolean isCanonical(String s) {
+        final int n = s.length();
+        int start = 0;
+        int prevStart = -1;
+        int prevEnd = -1;
+        for (int i = 0; i <= n; i++) {
+            final char c = i < n ? s.charAt(i) : ' ';
+            if (c == ' ') {
+                if (i == start) {
+// leading, trailing or duplicate blank
+                    return n == 0;
+                }
+                if (prevStart >= 0 && compare(s, prevStart, prevEnd, start, i) > 0) {
+                    return false;
+                }
+                prevStart = start;
+                prevEnd = i;
+                start = i + 1;
+            } else if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // same order as String.compareTo
+    private static int compare(String s, int aStart, int aEnd, int bStart, int bEnd) {
+        final int len = Math.min(aEnd - aStart, bEnd - bStart);
+        for (int k = 0; k < len; k++) {
+            final int diff = s.charAt(aStart + k) - s.charAt(bStart + k);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return (aEnd - aStart) - (bEnd - bStart);
+    }
+
+    static String fold(String address) {
+// compose first, so that a decomposed umlaut (u + combining diaeresis) is folded as well
+        final String composed = Normalizer.normalize(address, Normalizer.Form.NFC);
+        final StringBuilder sb = new StringBuilder(composed.length() + 8);
+        for (int i = 0; i < composed.length(); i++) {
+            final char c = Character.toLowerCase(composed.charAt(i));
+            switch (c) {
+                case 'ä': sb.append("ae"); break;
+                case 'ö': sb.append("oe"); break;
+                case 'ü': sb.append("ue"); break;
+                case 'ß': sb.append("ss"); break;
+                default: sb.append(c);
+            }
+        }
+        final String decomposed = Normalizer.normalize(sb, Normalizer.Form.NFKD);
+        sb.setLength(0);
+        for (int i = 0; i < decomposed.length(); i++) {
+            final char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            sb.append(Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : ' ');
+        }
+        return sb.toString();
+    }
+
+    static String sortTokens(String folded) {
+        final List<String> tokens = new ArrayList<>();
+        for (String token : folded.split(" ")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+        Collections.sort(tokens);
+        return String.join(" ", tokens);
+    }
+
+}
@@ -0,0 +1,131 @@
+package com.github.sittli.geoevent;
+
+import com.google.maps.model.LatLng;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+
+/*
+ * local gazetteer: lookups by canonical address in a sorted, memory-mapped index file (see GazetteerIndexBuilder)
+ * - zero copy: binary search directly on the mapped file, the only allocations per lookup are the probe key and the result
+ * - an address that is not in the index is unresolvable (NOT_FOUND), i.e. falls through to the next backend of a chain
+ * - the index must have been built with the same AddressCanonicalizer (checked when opening); lookups take the
+ *   canonical key of the caller (GeocodeCache), i.e. the address is not canonicalized again
+ * index file layout (big endian):
+ *   header: magic, version, count, slots offset, keys offset (int each), canonicalizer class name (modified UTF-8)
+ *   slots:  count x 24 bytes, sorted by key: first 8 key bytes (zero padded, unsigned compare), key offset, key length, lat e7, lng e7
+ *   keys:   the UTF-8 encoded canonical addresses
+ * Note: the mapping is limited to 2 GB (~ 30 million addresses) and is released by the GC only (no explicit unmap in Java 8)
+ * */
+public class GazetteerGeocoder implements Geocoder {
+
+    static final String PATH_CONFIG = "lookup.geocoder.gazetteer.path";
+
+    static final int MAGIC = 0x475A5431;
+    static final int VERSION = 1;
+    static final int SLOT_SIZE = 24;
+    static final double E7 = 1e7;
+
+    private final AddressCanonicalizer canonicalizer;
+    private final MappedByteBuffer index;
+    private final int count;
+    private final int slotsOffset;
+    private final int keysOffset;
+
+    public GazetteerGeocoder(Path path, AddressCanonicalizer canonicalizer) throws IOException {
+        this.canonicalizer = canonicalizer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " exceeds 2 GB");
+            }
+// the mapping stays valid after the channel is closed
+            this.index = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (index.getInt(0) != MAGIC || index.getInt(4) != VERSION) {
+            throw new IOException(path + " is not a gazetteer index (version " + VERSION + ")");
+        }
+        this.count = index.getInt(8);
+        this.slotsOffset = index.getInt(12);
+        this.keysOffset = index.getInt(16);
+        final byte[] name = new byte[index.getShort(20) & 0xFFFF];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = index.get(22 + i);
+        }
+// class names are ASCII, i.e. modified UTF-8 = UTF-8
+        final String builtWith = new String(name, StandardCharsets.UTF_8);
+        if (!builtWith.equals(canonicalizer.getClass().getName())) {
+            throw new IllegalArgumentException(path + " was built with " + builtWith
+                    + ", but addresses are canonicalized with " + canonicalizer.getClass().getName());
+        }
+    }
+
+    public static GazetteerGeocoder fromConfig(Properties cfg, AddressCanonicalizer canonicalizer) throws IOException {
+        final String path = cfg.getProperty(PATH_CONFIG);
+        if (path == null) {
+            throw new IllegalArgumentException(PATH_CONFIG + " is not set");
+        }
+        return new GazetteerGeocoder(Paths.get(path), canonicalizer);
+    }
+
+    @Override
+    public LatLng geocode(String address, String canonical) {
+        final byte[] key = canonical.getBytes(StandardCharsets.UTF_8);
+        final long prefix = prefix(key);
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final int slot = slotsOffset + mid * SLOT_SIZE;
+            int cmp = Long.compareUnsigned(index.getLong(slot), prefix);
+            if (cmp == 0) {
+                cmp = compareKey(index.getInt(slot + 8), index.getInt(slot + 12), key);
+            }
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return new LatLng(index.getInt(slot + 16) / E7, index.getInt(slot + 20) / E7);
+            }
+        }
+        throw new UnresolvableAddressException(UnresolvableAddressException.NOT_FOUND);
+    }
+
+    // the first 8 bytes have been compared via the prefix already
+    private int compareKey(int offset, int length, byte[] key) {
+        final int position = keysOffset + offset;
+        final int n = Math.min(length, key.length);
+        for (int i = Long.BYTES; i < n; i++) {
+            final int cmp = Integer.compare(index.get(position + i) & 0xFF, key[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    // the first 8 bytes of the key as unsigned long, zero padded (canonical addresses never contain a zero byte)
+    static long prefix(byte[] key) {
+        long prefix = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            prefix = (prefix << 8) | (i < key.length ? key[i] & 0xFF : 0);
+        }
+        return prefix;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public String name() {
+        return GAZETTEER;
+    }
+
+}
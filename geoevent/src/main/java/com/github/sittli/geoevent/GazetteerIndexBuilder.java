@@ -0,0 +1,184 @@
+package com.github.sittli.geoevent;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * builds the index file of the GazetteerGeocoder from a delimited text file with a header line
+ * - delimiter: tab, ';' or ',' (whichever the header contains first in this order); fields must not be quoted
+ * - address columns: either 'address' or the OSM tags 'addr:street', 'addr:housenumber', 'addr:postcode', 'addr:city'
+ *   (e.g. from an OSM extract: osmconvert germany.pbf --all-to-nodes --csv-headline
+ *    --csv="addr:street addr:housenumber addr:postcode addr:city @lat @lon" -o=addresses.csv)
+ * - coordinate columns: 'lat' or '@lat', 'lng', 'lon' or '@lon'
+ * - the addresses are canonicalized with the configured AddressCanonicalizer (system properties), duplicates keep the first location
+ * usage: java -cp geoevent-jar-with-dependencies.jar com.github.sittli.geoevent.GazetteerIndexBuilder <input file> <index file>
+ * Note: all entries are held in memory while sorting
+ * */
+public class GazetteerIndexBuilder {
+
+    private static final String[] ADDRESS_PARTS = {"addr:street", "addr:housenumber", "addr:postcode", "addr:city"};
+
+    private final AddressCanonicalizer canonicalizer;
+    private final Map<String, int[]> entries = new HashMap<>();
+    private long skipped;
+    private long duplicates;
+
+    public GazetteerIndexBuilder(AddressCanonicalizer canonicalizer) {
+        this.canonicalizer = canonicalizer;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("usage: GazetteerIndexBuilder <input file> <index file>");
+            System.exit(1);
+        }
+        final GazetteerIndexBuilder builder = new GazetteerIndexBuilder(AddressCanonicalizer.fromConfig(System.getProperties()));
+        builder.read(Paths.get(args[0]));
+        final int count = builder.write(Paths.get(args[1]));
+        System.out.println(count + " addresses written to " + args[1]
+                + " (" + builder.duplicates + " duplicates, " + builder.skipped + " lines skipped)");
+    }
+
+    public void read(Path input) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+            final String header = reader.readLine();
+            if (header == null) {
+                throw new IOException(input + " is empty");
+            }
+            final String delimiter = header.contains("\t") ? "\t" : header.contains(";") ? ";" : ",";
+            final List<String> columns = Arrays.asList(header.split(delimiter, -1));
+            final int address = columns.indexOf("address");
+            final int[] parts = new int[ADDRESS_PARTS.length];
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = columns.indexOf(ADDRESS_PARTS[i]);
+            }
+            final int lat = column(columns, "lat", "@lat");
+            final int lng = column(columns, "lng", "lon", "@lon");
+            if ((address < 0 && parts[0] < 0) || lat < 0 || lng < 0) {
+                throw new IOException(input + ": missing address or coordinate columns in header " + columns);
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] fields = line.split(delimiter, -1);
+                if (fields.length < columns.size()) {
+                    skipped++;
+                    continue;
+                }
+                final String raw = address >= 0 ? fields[address] : osmAddress(fields, parts);
+                try {
+                    add(raw, Double.parseDouble(fields[lat]), Double.parseDouble(fields[lng]));
+                } catch (NumberFormatException e) {
+                    skipped++;
+                }
+            }
+        }
+    }
+
+    private static int column(List<String> columns, String... names) {
+        for (String name : names) {
+            if (columns.contains(name)) {
+                return columns.indexOf(name);
+            }
+        }
+        return -1;
+    }
+
+    // "<street> <housenumber>, <postcode> <city>" (street level entries without house number are kept as well)
+    private static String osmAddress(String[] fields, int[] parts) {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < parts.length; i++) {
+            final String part = parts[i] >= 0 ? fields[parts[i]].trim() : "";
+            if (!part.isEmpty()) {
+                sb.append(sb.length() == 0 ? "" : i == 2 ? ", " : " ").append(part);
+            }
+        }
+        return sb.toString();
+    }
+
+    public void add(String address, double lat, double lng) {
+        final String key = address == null ? "" : canonicalizer.canonicalize(address);
+        if (key.isEmpty()) {
+            skipped++;
+            return;
+        }
+        final int[] location = {(int) Math.round(lat * GazetteerGeocoder.E7), (int) Math.round(lng * GazetteerGeocoder.E7)};
+        if (entries.putIfAbsent(key, location) != null) {
+            duplicates++;
+        }
+    }
+
+    /*
+     * writes the index (to a temporary file first, which is then moved, i.e. readers never see a partial index)
+     * */
+    public int write(Path index) throws IOException {
+        final List<byte[]> keys = new ArrayList<>(entries.size());
+        long keysSize = 0;
+        for (String key : entries.keySet()) {
+            final byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            keys.add(bytes);
+            keysSize += bytes.length;
+        }
+        keys.sort(GazetteerIndexBuilder::compare);
+
+        final byte[] name = canonicalizer.getClass().getName().getBytes(StandardCharsets.UTF_8);
+// header, padded to 8 bytes
+        final int slotsOffset = (22 + name.length + 7) & ~7;
+        final long keysOffset = slotsOffset + (long) keys.size() * GazetteerGeocoder.SLOT_SIZE;
+        if (keysOffset + keysSize > Integer.MAX_VALUE) {
+            throw new IOException("index exceeds 2 GB: " + keys.size() + " addresses");
+        }
+
+        final Path tmp = Paths.get(index + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(GazetteerGeocoder.MAGIC);
+            out.writeInt(GazetteerGeocoder.VERSION);
+            out.writeInt(keys.size());
+            out.writeInt(slotsOffset);
+            out.writeInt((int) keysOffset);
+            out.writeShort(name.length);
+            out.write(name);
+            out.write(new byte[slotsOffset - 22 - name.length]);
+            int keyOffset = 0;
+            for (byte[] key : keys) {
+                final int[] location = entries.get(new String(key, StandardCharsets.UTF_8));
+                out.writeLong(GazetteerGeocoder.prefix(key));
+                out.writeInt(keyOffset);
+                out.writeInt(key.length);
+                out.writeInt(location[0]);
+                out.writeInt(location[1]);
+                keyOffset += key.length;
+            }
+            for (byte[] key : keys) {
+                out.write(key);
+            }
+        }
+        Files.move(tmp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return keys.size();
+    }
+
+    // unsigned lexicographic order of the UTF-8 bytes (the order of the binary search)
+    static int compare(byte[] a, byte[] b) {
+        final int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            final int cmp = Integer.compare(a[i] & 0xFF, b[i] & 0xFF);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    }
+
+}
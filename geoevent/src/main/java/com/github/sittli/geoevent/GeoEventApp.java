@@ -2,9 +2,6 @@ package com.github.sittli.geoevent;
 
 //import com.github.sittli.geodata.Event;
 import com.google.maps.GeoApiContext;
-import com.google.maps.GeocodingApi;
-import com.google.maps.errors.ApiException;
-import com.google.maps.model.GeocodingResult;
 import com.google.maps.model.LatLng;
 import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
 import org.apache.avro.Schema;
@@ -12,14 +9,20 @@ import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.kafka.clients.CommonClientConfigs;
 import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.clients.producer.*;
+import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.config.SaslConfigs;
 import org.apache.kafka.common.config.SslConfigs;
+import org.apache.kafka.common.errors.AuthorizationException;
+import org.apache.kafka.common.errors.OutOfOrderSequenceException;
+import org.apache.kafka.common.errors.ProducerFencedException;
 import org.apache.kafka.common.errors.SerializationException;
 import org.apache.kafka.common.serialization.StringDeserializer;
 import org.apache.kafka.common.serialization.StringSerializer;
@@ -32,25 +35,81 @@ import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Duration;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.Future;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 
 public class GeoEventApp {
 
-    static KafkaConsumer<String, Object> kc = null;
-    static KafkaProducer<String, GenericRecord> kp = null;
+    static Consumer<String, Object> kc = null;
+    static Producer<String, GenericRecord> kp = null;
     static Schema outSchema=null;
+    static Schema failedSchema=null;
     static String INBOUND_TOPIC = "geo_eventdata_lookup";
     static String OUTBOUND_TOPIC = "geo_eventdata_response";
+// addresses the geocoder cannot resolve (incl. reason code)
+    static String UNRESOLVABLE_TOPIC = "geo_eventdata_unresolvable";
     static Logger logger = LoggerFactory.getLogger( GeoEventApp.class.getName() );
     static Properties extProps = new Properties();
     static String GOOGLE_MAPS_API_KEY = "<GOOGLE_MAPS_API_KEY>";
+    static GeoApiContext geoApiContext = null;
+    static AddressCanonicalizer canonicalizer = null;
+    static GeocodeCache geocodeCache = null;
+    static AdaptiveRateLimiter rateLimiter = null;
+// 'sync' flushes after every record (demo), 'async' pipelines sends and commits per chunk of records (see nextChunk),
+// 'transactional' commits responses and consumed offsets atomically (exactly once), one transaction per poll batch(es)
+    static final String PRODUCER_MODE_CONFIG = "lookup.producer.mode";
+    static final String PRODUCER_BATCH_SIZE_CONFIG = "lookup.producer.batch.size";
+    static final String PRODUCER_LINGER_MS_CONFIG = "lookup.producer.linger.ms";
+    static boolean asyncMode = true;
+// a transaction is committed once it contains max.records records or is open for max.ms (whichever comes first)
+    static final String TRANSACTION_MAX_RECORDS_CONFIG = "lookup.transaction.max.records";
+    static final String TRANSACTION_MAX_MS_CONFIG = "lookup.transaction.max.ms";
+// must be unique per instance; fencing of zombies is done via the consumer group generation (requires brokers >= 2.5)
+    static final String TRANSACTIONAL_ID_CONFIG = "lookup.transactional.id";
+    static boolean transactional = false;
+    static int transactionMaxRecords = 5000;
+    static long transactionMaxMs = 1000;
+// > 0 processes the records of a poll batch concurrently (key-ordered), see LookupEngine
+    static int workerThreads = 0;
+    static int maxInFlight = 1000;
+    static LookupEngine engine = null;
+// a record whose lookup failed (e.g. quota exceeded, denied request, serialization) is re-consumed after a backoff
+// (doubled per attempt); after max.attempts it is routed to the unresolvable topic (reason LOOKUP_FAILED)
+    static final String MAX_ATTEMPTS_CONFIG = "lookup.max.attempts";
+    static final String RETRY_BACKOFF_MS_CONFIG = "lookup.retry.backoff.ms";
+    static int maxAttempts = 5;
+    static long retryBackoffMs = 100;
+    static LookupMetrics lookupMetrics = null;
+// the backend(s) answering cache misses, see Geocoder.BACKENDS_CONFIG
+    static Geocoder geocoder = null;
 
-    private GeoEventApp() {
+// the open transaction: first consumed offset and next offset to consume per partition
+    private boolean inTransaction = false;
+    private long transactionStart;
+    private int transactionRecords;
+    private final Map<TopicPartition, Long> transactionStartOffsets = new HashMap<>();
+    private final Map<TopicPartition, OffsetAndMetadata> transactionOffsets = new HashMap<>();
+    private final AtomicReference<Exception> transactionFailure = new AtomicReference<>();
+// polled records that were not handed over yet; the consumer stays paused (but keeps polling) until they are worked off
+    private final Deque<ConsumerRecord<String, Object>> backlog = new ArrayDeque<>();
+// failed attempts per record (partition, offset) that is re-consumed; updated by the worker threads as well
+    private final Map<Map.Entry<TopicPartition, Long>, Integer> failedAttempts = new ConcurrentHashMap<>();
+
+    GeoEventApp() {
     }
 
     public static void main(String[] args) {
@@ -67,13 +126,53 @@ public class GeoEventApp {
             // TODO Auto-generated catch block
             e1.printStackTrace();
         }
-
-        kc = (KafkaConsumer<String, Object>) createConsumer();
-        kp = (KafkaProducer<String, GenericRecord>) createProducer();
+        configure(extProps, createProducer());
+        kc = createConsumer();
+        Runtime.getRuntime().addShutdownHook( new Thread (geoApiContext::shutdown));
+        Runtime.getRuntime().addShutdownHook( new Thread (geocoder::close));
+        Runtime.getRuntime().addShutdownHook( new Thread (lookupMetrics::close));
         this.consume();
 
     }
 
+    /*
+     * set up everything but the consumer (the benchmarks use this with a mock producer and the simulator)
+     * */
+    void configure(Properties cfg, Producer<String, GenericRecord> producer) {
+        workerThreads = Integer.parseInt(cfg.getProperty(LookupEngine.WORKER_THREADS_CONFIG, "0"));
+        maxInFlight = Integer.parseInt(cfg.getProperty(LookupEngine.MAX_IN_FLIGHT_CONFIG, "1000"));
+// the parallel engine always pipelines its sends
+        asyncMode = workerThreads > 0 || !"sync".equalsIgnoreCase(cfg.getProperty(PRODUCER_MODE_CONFIG, "async"));
+        transactional = isTransactional(cfg);
+        transactionMaxRecords = Integer.parseInt(cfg.getProperty(TRANSACTION_MAX_RECORDS_CONFIG, "5000"));
+        if (workerThreads > 0) {
+// the commit waits for the engine to complete the records of the transaction: at most lookup.max.in.flight
+            transactionMaxRecords = Math.min(transactionMaxRecords, maxInFlight);
+        }
+        transactionMaxMs = Long.parseLong(cfg.getProperty(TRANSACTION_MAX_MS_CONFIG, "1000"));
+        maxAttempts = Integer.parseInt(cfg.getProperty(MAX_ATTEMPTS_CONFIG, "5"));
+        retryBackoffMs = Long.parseLong(cfg.getProperty(RETRY_BACKOFF_MS_CONFIG, "100"));
+
+        createProducerSchema();
+        kp = producer;
+        if (transactional) {
+// fences a previous producer with the same transactional id and aborts its open transaction
+            kp.initTransactions();
+        }
+// one long-lived context (http client, connection pool, rate limiter) for all lookups
+        geoApiContext = createGeoApiContext();
+        canonicalizer = AddressCanonicalizer.fromConfig(cfg);
+        geocodeCache = GeocodeCache.fromConfig(cfg, canonicalizer);
+        rateLimiter = AdaptiveRateLimiter.fromConfig(cfg);
+        if (workerThreads > 0) {
+            engine = new LookupEngine(workerThreads, this::processRecord);
+        }
+        lookupMetrics = new LookupMetrics();
+        geocoder = createGeocoder(cfg);
+        registerGauges(lookupMetrics);
+
+    }
+
     /*
      * create a Consumer
      * */
@@ -84,6 +183,13 @@ public class GeoEventApp {
          props.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, extProps.getProperty("bootstrap.servers"));
 
         props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG,"earliest");
+// offsets are committed only once the responses of the handed over records are acknowledged
+// (auto commit would commit the position, i.e. the records still waiting in the backlog as well)
+        props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+        if (transactional) {
+// the lookup requests may be written transactionally as well
+            props.put(ConsumerConfig.ISOLATION_LEVEL_CONFIG, "read_committed");
+        }
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
         props.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, io.confluent.kafka.serializers.KafkaAvroDeserializer.class);
 
@@ -99,15 +205,23 @@ public class GeoEventApp {
      * create a Producer
      * */
     private static Producer<String, GenericRecord> createProducer() {
-        createProducerSchema();
         Properties props = new Properties();
         props.putAll( extProps );
         props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
         props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, io.confluent.kafka.serializers.KafkaAvroSerializer.class);
         props.put(ProducerConfig.ACKS_CONFIG, "all");
-        props.put(ProducerConfig.RETRIES_CONFIG, "0");
-        props.put(ProducerConfig.BATCH_SIZE_CONFIG, "16384");
-        props.put(ProducerConfig.LINGER_MS_CONFIG, "1"); // 1 milisecond
+        if (isTransactional(extProps)) {
+// idempotent: retries neither lose nor duplicate responses
+            props.put(ProducerConfig.ENABLE_IDEMPOTENCE_CONFIG, true);
+            props.put(ProducerConfig.RETRIES_CONFIG, Integer.MAX_VALUE);
+            props.put(ProducerConfig.MAX_IN_FLIGHT_REQUESTS_PER_CONNECTION, 5);
+            props.put(ProducerConfig.TRANSACTIONAL_ID_CONFIG,
+                    extProps.getProperty(TRANSACTIONAL_ID_CONFIG, "geo-lookup-ms-" + UUID.randomUUID()));
+        } else {
+            props.put(ProducerConfig.RETRIES_CONFIG, "0");
+        }
+        props.put(ProducerConfig.BATCH_SIZE_CONFIG, extProps.getProperty(PRODUCER_BATCH_SIZE_CONFIG, "16384"));
+        props.put(ProducerConfig.LINGER_MS_CONFIG, extProps.getProperty(PRODUCER_LINGER_MS_CONFIG, "1")); // 1 milisecond
         props.put(ProducerConfig.BUFFER_MEMORY_CONFIG, "33554432");
         props.put(AbstractKafkaAvroSerDeConfig.BASIC_AUTH_CREDENTIALS_SOURCE,"USER_INFO");
         props.put(AbstractKafkaAvroSerDeConfig.AUTO_REGISTER_SCHEMAS, false);
@@ -117,13 +231,83 @@ public class GeoEventApp {
         return new KafkaProducer<String, GenericRecord>(props);
     }
 
+    // the producer is created before configure() runs, hence evaluated on the config
+    private static boolean isTransactional(Properties cfg) {
+        return "transactional".equalsIgnoreCase(cfg.getProperty(PRODUCER_MODE_CONFIG, "async"));
+    }
+
+
+    /*
+     * create the geocoder: one backend or a chain of backends (e.g. 'gazetteer,google': local index first, remote on a miss)
+     * */
+    private static Geocoder createGeocoder(Properties cfg) {
+        final List<Geocoder> backends = new ArrayList<>();
+        for (String name : cfg.getProperty(Geocoder.BACKENDS_CONFIG, Geocoder.GOOGLE).split(",")) {
+            switch (name.trim().toLowerCase()) {
+                case Geocoder.GOOGLE:
+                    backends.add(new GoogleGeocoder(geoApiContext, rateLimiter, lookupMetrics));
+                    break;
+                case Geocoder.GAZETTEER:
+                    try {
+                        backends.add(GazetteerGeocoder.fromConfig(cfg, canonicalizer));
+                    } catch (IOException e) {
+                        throw new IllegalArgumentException("cannot open the gazetteer index", e);
+                    }
+                    break;
+                case Geocoder.SIMULATOR:
+                    backends.add(new SimulatorGeocoder());
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown " + Geocoder.BACKENDS_CONFIG + ": " + name);
+            }
+        }
+        return backends.size() == 1 ? backends.get(0) : new ChainedGeocoder(backends);
+    }
+
+
+    /*
+     * register the gauges (JMX) for the cache, the geocoder(s), the rate limiter and the lookup engine
+     * */
+    private static void registerGauges(LookupMetrics metrics) {
+        metrics.gauge("cache-hit-ratio", "share of lookups answered by the cache", geocodeCache::hitRate);
+        metrics.gauge("cache-negative-hits", "lookups answered as unresolvable by the cache", geocodeCache::negativeHitCount);
+        metrics.gauge("cache-coalesced", "lookups that waited for a running lookup of the same address", geocodeCache::coalescedCount);
+        metrics.gauge("cache-size", "approx. number of cached addresses", geocodeCache::size);
+        metrics.gauge("rate-limit", "current geocoder calls per second", rateLimiter::rate);
+        metrics.gauge("address-rewritten", "addresses merged into their canonical form", canonicalizer::rewrittenCount);
+        if (geocoder instanceof ChainedGeocoder) {
+            final ChainedGeocoder chain = (ChainedGeocoder) geocoder;
+            for (int i = 0; i < chain.backends().size(); i++) {
+                final int backend = i;
+                metrics.gauge("geocoder-" + chain.backends().get(i).name() + "-resolved",
+                        "cache misses resolved by this backend of the chain", () -> chain.resolvedCount(backend));
+            }
+        }
+        if (engine != null) {
+            metrics.gauge("in-flight", "records handed over to the lookup engine, not yet completed", engine::inFlight);
+        }
+    }
+
+
+    /*
+     * create the (shared) GeoApiContext
+     * */
+    private static GeoApiContext createGeoApiContext() {
+        return new GeoApiContext.Builder()
+                .apiKey(GOOGLE_MAPS_API_KEY)
+                .build();
+    }
+
 
     private static void createProducerSchema() {
 // We must specify the Avro schemas for all intermediate (Avro) classes, if any.
         final InputStream geodata_response = GeoEventApp.class.getClassLoader()
                         .getResourceAsStream("avro/com.github.sittli.geoevent/geodata_event_response.avsc");
+        final InputStream geodata_failed = GeoEventApp.class.getClassLoader()
+                        .getResourceAsStream("avro/com.github.sittli.geoevent/geodata_event_failed.avsc");
         try {
             outSchema = new Schema.Parser().parse(geodata_response);
+            failedSchema = new Schema.Parser().parse(geodata_failed);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -131,15 +315,50 @@ public class GeoEventApp {
 
 
     public void consume() {
-        kc.subscribe(Collections.singleton(INBOUND_TOPIC));
+        kc.subscribe(Collections.singleton(INBOUND_TOPIC), new ConsumerRebalanceListener() {
+            @Override
+            public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+                if (transactional) {
+// still member of the current generation, i.e. the open transaction can be committed
+                    if (inTransaction) {
+                        commitTransaction();
+                    }
+                } else if (engine != null) {
+// finish (and commit) whatever is in flight before another instance takes over
+                    try {
+                        engine.awaitIdle();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    kc.commitSync(engine.takeCommittable());
+                    engine.forget(partitions);
+                }
+// not handed over yet, i.e. not committed: the new owner consumes them (and counts its own attempts)
+                dropBacklog(partitions);
+                failedAttempts.keySet().removeIf(attempt -> partitions.contains(attempt.getKey()));
+            }
+
+            @Override
+            public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            }
+        });
         final Pattern offsetPattern = Pattern.compile("\\w*offset*\\w[ ]\\d+");
         final Pattern partitionPattern = Pattern.compile("\\w*" + INBOUND_TOPIC + "*\\w[-]\\d+");
         while (true) {
             try {
                 // deserialization already happens in poll()
-                ConsumerRecords<String, Object> records = kc.poll(Duration.ofMillis(1000));
+                ConsumerRecords<String, Object> records = kc.poll(pollTimeout());
 //                logger.info("#records: " + records.count() );
-                records.forEach(this::processRecord);
+                records.forEach(backlog::add);
+                final List<ConsumerRecord<String, Object>> chunk = nextChunk();
+                if (transactional) {
+                    processTransactional(chunk);
+                } else if (engine != null) {
+                    processParallel(chunk);
+                } else {
+                    processBatch(chunk);
+                }
+                applyBackpressure();
             }
             catch ( SerializationException se ) {
                 String text = se.getMessage();
@@ -158,73 +377,337 @@ public class GeoEventApp {
 
                 se.printStackTrace();
             }
+            catch (ProducerFencedException | OutOfOrderSequenceException | AuthorizationException e) {
+// fatal for a transactional producer, e.g. another instance with the same transactional id took over
+                logger.error("transactional producer failed, stopping", e);
+                break;
+            }
             catch (Exception e) {
                 e.printStackTrace();
             }
         }
+        kc.close();
+    }
+
+
+    // the time bound of an open transaction caps the poll timeout
+    private Duration pollTimeout() {
+        if (!kc.paused().isEmpty()) {
+// nothing is fetched, the poll keeps the membership alive (and waits a little for the engine to drain)
+            return Duration.ofMillis(engine == null ? 0 : 10);
+        }
+        if (!inTransaction) {
+            return Duration.ofMillis(1000);
+        }
+        return Duration.ofMillis(Math.max(0, Math.min(1000, transactionStart + transactionMaxMs - System.currentTimeMillis())));
+    }
+
+
+    /*
+     * the records to hand over now (taken from the backlog): as many as the geocoder can serve within the limiter's
+     * max. backlog at its current rate (incl. the records in flight) and at most lookup.max.in.flight;
+     * at least one record, if nothing is in flight
+     * Note: processing in the poll thread (no engine) thus takes about lookup.rate.max.backlog.seconds per chunk at most,
+     * i.e. far less than max.poll.interval.ms
+     * */
+    private List<ConsumerRecord<String, Object>> nextChunk() {
+        final int queued = engine == null ? 0 : engine.inFlight();
+// the open transaction takes at most its remaining records (it is committed once full)
+        final int limit = transactional ? transactionMaxRecords - transactionRecords : Integer.MAX_VALUE;
+        final List<ConsumerRecord<String, Object>> chunk = new ArrayList<>();
+        while (!backlog.isEmpty() && chunk.size() < limit && (queued + chunk.size() == 0
+                || queued + chunk.size() < maxInFlight && !rateLimiter.saturated(queued + chunk.size() + 1))) {
+            chunk.add(backlog.poll());
+        }
+        return chunk;
+    }
+
+
+    /*
+     * backpressure: stop fetching while records wait in the backlog or the engine cannot keep up
+     * (the consumer keeps polling, so no rebalance is triggered)
+     * */
+    private void applyBackpressure() {
+        final int queued = engine == null ? 0 : engine.inFlight();
+        if (!backlog.isEmpty() || queued >= maxInFlight || rateLimiter.saturated(queued)) {
+            if (kc.paused().isEmpty() && logger.isDebugEnabled()) {
+                logger.debug("pausing consumption, backlog: " + backlog.size() + ", in flight: " + queued + ", rate: " + rateLimiter.rate());
+            }
+            kc.pause(kc.assignment());
+        } else if (!kc.paused().isEmpty() && queued <= maxInFlight / 2 && !rateLimiter.saturated(queued * 2)) {
+            kc.resume(kc.paused());
+        }
     }
 
 
-    private void processRecord(ConsumerRecord<String, Object> record) {
+    /*
+     * re-consume the given partitions from the given offsets (the backlog of these partitions is fetched again)
+     * */
+    private void rewind(Map<TopicPartition, Long> positions) {
+        positions.forEach(kc::seek);
+        dropBacklog(positions.keySet());
+    }
+
+    private void dropBacklog(Collection<TopicPartition> partitions) {
+        backlog.removeIf(record -> partitions.contains(new TopicPartition(record.topic(), record.partition())));
+    }
+
+
+    /*
+     * process a chunk of records with pipelined sends ('sync' mode: flushed per record)
+     * offsets are committed after all sends of the chunk are acknowledged; on a failed lookup or send the partition is
+     * re-consumed from the failed record on
+     * */
+    private void processBatch(List<ConsumerRecord<String, Object>> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        final AtomicReference<Exception> sendFailure = new AtomicReference<>();
+// first failed offset per partition (the callbacks run on the producer's I/O thread)
+        final Map<TopicPartition, Long> failed = new ConcurrentHashMap<>();
+        final Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        for (ConsumerRecord<String, Object> record : records) {
+            final TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+            if (sendFailure.get() != null) {
+// no further lookups after a failure (e.g. the quota is exceeded), the rest of the chunk is re-consumed as well
+                failed.merge(tp, record.offset(), Math::min);
+                continue;
+            }
+            processRecord(record, (metadata, exception) -> {
+                if (exception != null) {
+                    sendFailure.compareAndSet(null, exception);
+                    failed.merge(tp, record.offset(), Math::min);
+                }
+            });
+            offsets.put(tp, new OffsetAndMetadata(record.offset() + 1));
+        }
+// blocks until all sends of this chunk are completed
+        kp.flush();
+        failed.forEach((tp, offset) -> offsets.put(tp, new OffsetAndMetadata(offset)));
+        kc.commitSync(offsets);
+        if (sendFailure.get() != null) {
+            logger.error("lookup or send failed, re-consuming from " + failed, sendFailure.get());
+            rewind(failed);
+        }
+    }
+
+
+    /*
+     * process chunks within a transaction (exactly once): responses and consumed offsets are committed atomically
+     * a transaction spans chunks until it reaches max.records or max.ms; with the parallel engine the workers send
+     * into the same transaction, which is committed once they are idle (max.records is capped by lookup.max.in.flight)
+     * a failed lookup or send aborts the transaction right away, its records are re-consumed
+     * */
+    private void processTransactional(List<ConsumerRecord<String, Object>> records) {
+        if (!records.isEmpty()) {
+            if (!inTransaction) {
+                kp.beginTransaction();
+                inTransaction = true;
+                transactionStart = System.currentTimeMillis();
+            }
+            for (ConsumerRecord<String, Object> record : records) {
+                final TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+                transactionStartOffsets.putIfAbsent(tp, record.offset());
+                transactionOffsets.put(tp, new OffsetAndMetadata(record.offset() + 1));
+            }
+            transactionRecords += records.size();
+            if (engine != null) {
+                records.forEach(engine::submit);
+            } else {
+                for (ConsumerRecord<String, Object> record : records) {
+                    if (transactionFailure.get() != null) {
+// no further lookups, the transaction is aborted anyway
+                        break;
+                    }
+                    processRecord(record, (metadata, exception) -> {
+                        if (exception != null) {
+                            transactionFailure.compareAndSet(null, exception);
+                        }
+                    });
+                }
+            }
+        }
+        if (inTransaction && (transactionFailure.get() != null || engine != null && engine.failure() != null
+                || transactionRecords >= transactionMaxRecords
+                || System.currentTimeMillis() - transactionStart >= transactionMaxMs)) {
+            commitTransaction();
+        }
+    }
+
+
+    /*
+     * commit the open transaction incl. the consumed offsets
+     * on a (non fatal) failure the transaction is aborted and its records are re-consumed
+     * */
+    private void commitTransaction() {
         try {
-            logger.info( "Class of Value: " +  record.value().getClass() );
-            logger.info("Consumption - received new metadata \n" +
-                    "Key: " + record.key() + "\n" +
-                    "Value: " + record.value() + "\n" +
-                    "Partition: " + record.partition() + "\n" +
-                    "Offset: " + record.offset() + "\n" +
-                    "Headers: " + record.headers() + "\n" +
-                    "Timestamp: " + record.timestamp() + "\n");
+            if (engine != null) {
+                engine.awaitIdle();
+                transactionFailure.compareAndSet(null, engine.failure());
+            }
+            if (transactionFailure.get() != null) {
+                throw new KafkaException("send failed", transactionFailure.get());
+            }
+            kp.sendOffsetsToTransaction(transactionOffsets, kc.groupMetadata());
+// flushes the sends of the transaction
+            kp.commitTransaction();
+        } catch (ProducerFencedException | OutOfOrderSequenceException | AuthorizationException e) {
+            throw e;
+        } catch (KafkaException e) {
+            logger.error("transaction aborted, re-consuming " + transactionRecords + " records", e);
+            kp.abortTransaction();
+            rewind(transactionStartOffsets);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            kp.abortTransaction();
+            rewind(transactionStartOffsets);
+        } finally {
+            if (engine != null) {
+                engine.forget(transactionOffsets.keySet());
+            }
+            inTransaction = false;
+            transactionRecords = 0;
+            transactionStartOffsets.clear();
+            transactionOffsets.clear();
+            transactionFailure.set(null);
+        }
+    }
+
+
+    /*
+     * hand over a chunk to the parallel engine and commit whatever became contiguous
+     * (the chunk size keeps the records in flight within lookup.max.in.flight, see nextChunk)
+     * */
+    private void processParallel(List<ConsumerRecord<String, Object>> records) throws InterruptedException {
+        records.forEach(engine::submit);
+
+        if (engine.failure() != null) {
+// at least once: re-consume from the first offset that has not been completed
+            logger.error("lookup or send failed, re-consuming from last completed offset", engine.failure());
+            engine.awaitIdle();
+            kc.commitSync(engine.takeCommittable());
+            rewind(engine.resumePositions());
+            engine.forget(kc.assignment());
+            return;
+        }
+
+        Map<TopicPartition, OffsetAndMetadata> offsets = engine.takeCommittable();
+        if (!offsets.isEmpty()) {
+            kc.commitAsync(offsets, (committed, exception) -> {
+                if (exception != null) {
+                    logger.warn("commit failed", exception);
+                }
+            });
+        }
+    }
+
+
+    /*
+     * look up the address of the record and send the response (or the unresolvable address)
+     * the callback completes with an exception if the geocoder call or the send failed, i.e. the record has to be
+     * re-consumed; a record that cannot be processed at all (e.g. without address) is skipped, but still counts as processed
+     * a re-consumed record waits for its backoff first; after lookup.max.attempts failed attempts it is given up, i.e. sent
+     * to the unresolvable topic (LOOKUP_FAILED) instead of being looked up again
+     * Note: failed sends reported via the callback are not counted (the producer retries them within delivery.timeout.ms;
+     * the records of an aborted transaction fail as well), only failures of the lookup or of send() itself are
+     * */
+    void processRecord(ConsumerRecord<String, Object> record, Callback callback) {
+        boolean handedOver = false;
+        boolean lookupStarted = false;
+        final Map.Entry<TopicPartition, Long> attempt =
+                new AbstractMap.SimpleImmutableEntry<>(new TopicPartition(record.topic(), record.partition()), record.offset());
+        final int attempts = failedAttempts.getOrDefault(attempt, 0);
+        try {
+// per record logging is debug only (the strings are not even built otherwise), see LookupMetrics for the numbers
+            if (logger.isDebugEnabled()) {
+                logger.debug("Consumption - received new metadata \n" +
+                        "Key: " + record.key() + "\n" +
+                        "Value: " + record.value() + "\n" +
+                        "Partition: " + record.partition() + "\n" +
+                        "Offset: " + record.offset() + "\n" +
+                        "Headers: " + record.headers() + "\n" +
+                        "Timestamp: " + record.timestamp() + "\n");
+            }
             GenericRecord gr = (GenericRecord) record.value();
-            logger.info( "address = " + gr.get("address").toString() );
+            final String address = gr.get("address").toString();
+            lookupMetrics.recordLookup();
+// responses are keyed by the canonical address (the key of the pending events in the streaming app)
+            final String key = record.key() == null ? null : canonicalizer.canonicalize(record.key());
+            ProducerRecord<String, GenericRecord> newRecord;
+            if (attempts >= maxAttempts) {
+                logger.warn("giving up " + record.topic() + "-" + record.partition() + "@" + record.offset() + " (" + address
+                        + ") after " + attempts + " failed attempts");
+                lookupMetrics.recordUnresolvable();
+                newRecord = failedRecord( key, gr, UnresolvableAddressException.LOOKUP_FAILED );
+            } else {
+                backoff(attempts);
+                lookupStarted = true;
+                try {
 // retrieve lat / lng for address
-//            LatLng ll = getGeoLatLng_Simulator( gr.get("address").toString() );
-            LatLng ll = getGeoLatLng( gr.get("address").toString() );
+                    LatLng ll = getGeoLatLng( address );
 
 // create enriched record
-            GenericRecord nGr = new GenericData.Record(outSchema);
-            nGr.put( "address", gr.get("address") );
-            nGr.put( "lat", ll.lat );
-            nGr.put( "lng", ll.lng );
-            ProducerRecord<String, GenericRecord> newRecord =
-                    new ProducerRecord<String, GenericRecord>(OUTBOUND_TOPIC, record.key(), nGr );
-            logger.info("pre send()");
+                    GenericRecord nGr = new GenericData.Record(outSchema);
+                    nGr.put( "address", gr.get("address") );
+                    nGr.put( "lat", ll.lat );
+                    nGr.put( "lng", ll.lng );
+                    newRecord = new ProducerRecord<String, GenericRecord>(OUTBOUND_TOPIC, key, nGr );
+                } catch (UnresolvableAddressException ue) {
+                    lookupMetrics.recordUnresolvable();
+// route to the side topic (the streaming app releases the pending events for this address as failed)
+                    newRecord = failedRecord( key, gr, ue.getReason() );
+                }
+            }
 // publish enriched record
-            Future future = kp.send( newRecord );
-            logger.info("post send()");
-//            future.get();
-            logger.info("post future.get()");
+            kp.send( newRecord, callback );
+            handedOver = true;
+            if (attempts > 0) {
+                failedAttempts.remove(attempt);
+            }
+            if (!asyncMode) {
 // flush every record (just for demo purpose)
-            kp.flush();
+                kp.flush();
+            }
 
         } catch (Exception e) {
-            logger.error("caught exception " );
-            e.printStackTrace();
-            // handle error
+            logger.error("caught exception ", e);
+            lookupMetrics.recordError();
+            if (lookupStarted && !handedOver) {
+                failedAttempts.merge(attempt, 1, Integer::sum);
+            } else {
+// skipped (e.g. no address, or giving up failed as well)
+                failedAttempts.remove(attempt);
+            }
+            if (!handedOver && callback != null) {
+// a failed call (e.g. quota exceeded, see Geocoder) is retried by the caller, which re-consumes the record;
+// the rate limiter has backed off already
+                callback.onCompletion(null, lookupStarted ? e : null);
+            }
         }
     }
 
-    private LatLng getGeoLatLng( String address ) {
-        GeoApiContext context = new GeoApiContext.Builder()
-                .apiKey(GOOGLE_MAPS_API_KEY)
-                .build();
-        GeocodingResult[] results = new GeocodingResult[0];
+    private static ProducerRecord<String, GenericRecord> failedRecord(String key, GenericRecord gr, String reason) {
+        GenericRecord fGr = new GenericData.Record(failedSchema);
+        fGr.put( "address", gr.get("address") );
+        fGr.put( "reason", reason );
+        fGr.put( "timestamp", System.currentTimeMillis() );
+        return new ProducerRecord<String, GenericRecord>(UNRESOLVABLE_TOPIC, key, fGr );
+    }
+
+    // retry.backoff.ms, doubled per failed attempt (at most 64 times)
+    private static void backoff(int attempts) {
+        if (attempts == 0) {
+            return;
+        }
         try {
-            results = GeocodingApi.geocode(context, address+",Germany").await();
-        } catch (ApiException e) {
-            e.printStackTrace();
+            Thread.sleep(retryBackoffMs << Math.min(attempts - 1, 6));
         } catch (InterruptedException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
         }
-        LatLng location = results[0].geometry.location;
-        logger.info("lat: " + location.lat  + " | lng: " + location.lng );
-        return location;
     }
 
-    private LatLng getGeoLatLng_Simulator( String address ) {
-      return new LatLng( 48.1351253, 11.5819805);
+    private LatLng getGeoLatLng( String address ) {
+        return geocodeCache.get( address, geocoder::geocode );
     }
 
     public static Properties loadExternalConfig(String configFile) throws IOException {
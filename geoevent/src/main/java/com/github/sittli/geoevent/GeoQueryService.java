@@ -0,0 +1,366 @@
+package com.github.sittli.geoevent;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.sittli.geodata.EventEnriched;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.serialization.Serializer;
+import org.apache.kafka.streams.KafkaStreams;
+import org.apache.kafka.streams.KeyQueryMetadata;
+import org.apache.kafka.streams.StoreQueryParameters;
+import org.apache.kafka.streams.errors.InvalidStateStoreException;
+import org.apache.kafka.streams.state.HostInfo;
+import org.apache.kafka.streams.state.QueryableStoreTypes;
+import org.apache.kafka.streams.state.ReadOnlyKeyValueStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Embedded HTTP endpoint serving address lookups from the geo data store (interactive queries), never from the geocoder
+ * - GET  /geo?address=<address>               one address: 200 (hit) or 404 (miss), JSON
+ * - POST /geo/batch (one address per line)    JSON array in request order, status per address
+ * - status: 'hit' (incl. lat, lng), 'miss' (not in the store, no lookup is triggered) or 'unavailable' (e.g. rebalancing)
+ * - global store: every instance answers from its own copy
+ * - partitioned store: the key's active instance is taken from the streams metadata (application.server),
+ *   lookups of other instances are forwarded to them (POST /geo/local, one request per instance and batch)
+ * - read-through near cache of hits (size and ttl configurable), i.e. repeated lookups skip the store and the forwarding
+ * Note: the server is the JDK's built-in com.sun.net.httpserver, i.e. no additional dependency
+ * */
+public class GeoQueryService implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(GeoQueryService.class.getName());
+
+// host:port of this instance; enables the endpoint (and is published as application.server for the routing)
+    static final String LISTENER_CONFIG = "geo.query.listener";
+    static final String THREADS_CONFIG = "geo.query.threads";
+    static final String CACHE_MAX_SIZE_CONFIG = "geo.query.cache.max.size";
+    static final String CACHE_TTL_MS_CONFIG = "geo.query.cache.ttl.ms";
+    static final String FORWARD_TIMEOUT_MS_CONFIG = "geo.query.forward.timeout.ms";
+
+    static final String HIT = "hit";
+    static final String MISS = "miss";
+    static final String UNAVAILABLE = "unavailable";
+
+    /*
+     * result of a lookup (lat, lng only for hits)
+     * */
+    static final class Result {
+        static final Result MISSED = new Result(MISS, null, null);
+        static final Result NOT_AVAILABLE = new Result(UNAVAILABLE, null, null);
+
+        final String status;
+        final Double lat;
+        final Double lng;
+
+        Result(String status, Double lat, Double lng) {
+            this.status = status;
+            this.lat = lat;
+            this.lng = lng;
+        }
+
+        static Result hit(double lat, double lng) {
+            return new Result(HIT, lat, lng);
+        }
+    }
+
+    private final KafkaStreams streams;
+    private final String storeName;
+    private final boolean partitioned;
+    private final HostInfo self;
+    private final AddressCanonicalizer canonicalizer;
+    private final Cache<String, Result> nearCache;
+    private final int forwardTimeoutMs;
+    private final Serializer<String> keySerializer = Serdes.String().serializer();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    public GeoQueryService(KafkaStreams streams, String storeName, boolean partitioned, HostInfo self,
+                           AddressCanonicalizer canonicalizer, int threads, long cacheMaxSize, long cacheTtlMs,
+                           int forwardTimeoutMs) throws IOException {
+        this.streams = streams;
+        this.storeName = storeName;
+        this.partitioned = partitioned;
+        this.self = self;
+        this.canonicalizer = canonicalizer;
+        this.nearCache = Caffeine.newBuilder()
+                .maximumSize(cacheMaxSize)
+                .expireAfterWrite(cacheTtlMs, TimeUnit.MILLISECONDS)
+                .build();
+        this.forwardTimeoutMs = forwardTimeoutMs;
+
+        final AtomicInteger threadNo = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "geo-query-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(self.port()), 0);
+        server.createContext("/geo", this::handleLookup);
+        server.createContext("/geo/batch", this::handleBatch);
+        server.createContext("/geo/local", this::handleLocal);
+        server.setExecutor(executor);
+    }
+
+    /*
+     * null, if geo.query.listener is not set (endpoint disabled)
+     * */
+    public static GeoQueryService fromConfig(Properties cfg, KafkaStreams streams, String storeName, boolean partitioned) throws IOException {
+        final String listener = cfg.getProperty(LISTENER_CONFIG);
+        if (listener == null || listener.isEmpty()) {
+            return null;
+        }
+        final String[] hostPort = listener.split(":");
+        return new GeoQueryService(streams, storeName, partitioned,
+                new HostInfo(hostPort[0], Integer.parseInt(hostPort[1])),
+                AddressCanonicalizer.fromConfig(cfg),
+                Integer.parseInt(cfg.getProperty(THREADS_CONFIG, "4")),
+                Long.parseLong(cfg.getProperty(CACHE_MAX_SIZE_CONFIG, "100000")),
+                Long.parseLong(cfg.getProperty(CACHE_TTL_MS_CONFIG, "60000")),
+                Integer.parseInt(cfg.getProperty(FORWARD_TIMEOUT_MS_CONFIG, "2000")));
+    }
+
+    public void start() {
+        server.start();
+        logger.info("geo query endpoint listening on " + self.host() + ":" + self.port());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    /*
+     * results in the order of the addresses
+     * */
+    public List<Result> lookup(List<String> addresses) {
+        final Result[] results = new Result[addresses.size()];
+        final String[] keys = new String[addresses.size()];
+// keys per (other) instance, forwarded in one request each
+        final Map<HostInfo, List<Integer>> forwards = new HashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = canonicalizer.canonicalize(addresses.get(i));
+            final Result cached = nearCache.getIfPresent(keys[i]);
+            if (cached != null) {
+                results[i] = cached;
+            } else if (!partitioned) {
+                results[i] = local(keys[i], null);
+            } else {
+                final KeyQueryMetadata metadata = metadata(keys[i]);
+                if (metadata == null || KeyQueryMetadata.NOT_AVAILABLE.equals(metadata)) {
+                    results[i] = Result.NOT_AVAILABLE;
+                } else if (self.equals(metadata.getActiveHost())) {
+                    results[i] = local(keys[i], metadata.getPartition());
+                } else {
+                    forwards.computeIfAbsent(metadata.getActiveHost(), h -> new ArrayList<>()).add(i);
+                }
+            }
+        }
+        forwards.forEach((host, indexes) -> {
+            final List<Result> forwarded = forward(host, indexes, keys);
+            for (int j = 0; j < indexes.size(); j++) {
+                results[indexes.get(j)] = forwarded.get(j);
+            }
+        });
+        final List<Result> list = new ArrayList<>(results.length);
+        for (int i = 0; i < results.length; i++) {
+            if (HIT.equals(results[i].status)) {
+                nearCache.put(keys[i], results[i]);
+            }
+            list.add(results[i]);
+        }
+        return list;
+    }
+
+    // lookup in the local store (partition: the store partition of the key, null for the global store)
+    private Result local(String key, Integer partition) {
+        try {
+            StoreQueryParameters<ReadOnlyKeyValueStore<String, EventEnriched>> parameters =
+                    StoreQueryParameters.fromNameAndType(storeName, QueryableStoreTypes.keyValueStore());
+            if (partition != null) {
+                parameters = parameters.withPartition(partition);
+            }
+            final EventEnriched geo = streams.store(parameters).get(key);
+            return geo == null || geo.getLat() == null ? Result.MISSED : Result.hit(geo.getLat(), geo.getLng());
+        } catch (InvalidStateStoreException e) {
+// not (yet) queryable, e.g. during a rebalance or restoration
+            return Result.NOT_AVAILABLE;
+        }
+    }
+
+    // the owner of the key's partition, null if not known (yet)
+    private KeyQueryMetadata metadata(String key) {
+        try {
+            return streams.queryMetadataForKey(storeName, key, keySerializer);
+        } catch (IllegalStateException | InvalidStateStoreException e) {
+// e.g. not started yet or already shutting down
+            return null;
+        }
+    }
+
+    // internal protocol: one canonical key per line in, one 'status[\tlat\tlng]' line per key out
+    private List<Result> forward(HostInfo host, List<Integer> indexes, String[] keys) {
+        final List<Result> results = new ArrayList<>(indexes.size());
+        try {
+            final HttpURLConnection connection = (HttpURLConnection)
+                    new URL("http://" + host.host() + ":" + host.port() + "/geo/local").openConnection();
+            connection.setConnectTimeout(forwardTimeoutMs);
+            connection.setReadTimeout(forwardTimeoutMs);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            final StringBuilder body = new StringBuilder();
+            indexes.forEach(i -> body.append(keys[i]).append('\n'));
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write(body.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    final String[] fields = line.split("\t");
+                    results.add(HIT.equals(fields[0])
+                            ? Result.hit(Double.parseDouble(fields[1]), Double.parseDouble(fields[2]))
+                            : MISS.equals(fields[0]) ? Result.MISSED : Result.NOT_AVAILABLE);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("forwarding " + indexes.size() + " lookups to " + host.host() + ":" + host.port() + " failed", e);
+        }
+        while (results.size() < indexes.size()) {
+            results.add(Result.NOT_AVAILABLE);
+        }
+        return results;
+    }
+
+    private void handleLookup(HttpExchange exchange) throws IOException {
+        final String address = "/geo".equals(exchange.getRequestURI().getPath()) ? parameter(exchange, "address") : null;
+        if (address == null) {
+            respond(exchange, 400, "{\"error\":\"GET /geo?address=<address>\"}");
+            return;
+        }
+        final Result result = lookup(Collections.singletonList(address)).get(0);
+        respond(exchange, HIT.equals(result.status) ? 200 : MISS.equals(result.status) ? 404 : 503, json(address, result));
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "{\"error\":\"POST /geo/batch with one address per line\"}");
+            return;
+        }
+        final List<String> addresses = lines(exchange.getRequestBody());
+        final List<Result> results = lookup(addresses);
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < results.size(); i++) {
+            sb.append(i == 0 ? "" : ",").append(json(addresses.get(i), results.get(i)));
+        }
+        respond(exchange, 200, sb.append(']').toString());
+    }
+
+    private void handleLocal(HttpExchange exchange) throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (String key : lines(exchange.getRequestBody())) {
+// the sender routed by the same metadata; after a rebalance the key may not be local anymore (-> unavailable)
+            Result result = nearCache.getIfPresent(key);
+            if (result == null && !partitioned) {
+                result = local(key, null);
+            } else if (result == null) {
+                final KeyQueryMetadata metadata = metadata(key);
+                result = metadata != null && self.equals(metadata.getActiveHost())
+                        ? local(key, metadata.getPartition()) : Result.NOT_AVAILABLE;
+            }
+            sb.append(result.status);
+            if (HIT.equals(result.status)) {
+                sb.append('\t').append(result.lat).append('\t').append(result.lng);
+            }
+            sb.append('\n');
+        }
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        send(exchange, 200, sb.toString());
+    }
+
+    private static String parameter(HttpExchange exchange, String name) throws IOException {
+        final String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq > 0 && name.equals(pair.substring(0, eq))) {
+                return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private static List<String> lines(InputStream body) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = body.read(buffer)) > 0) {
+            bytes.write(buffer, 0, n);
+        }
+        final List<String> lines = new ArrayList<>();
+        for (String line : new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\r?\n")) {
+            if (!line.trim().isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    static String json(String address, Result result) {
+        final StringBuilder sb = new StringBuilder("{\"address\":\"");
+        for (int i = 0; i < address.length(); i++) {
+            final char c = address.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append("\",\"status\":\"").append(result.status).append('"');
+        if (HIT.equals(result.status)) {
+            sb.append(",\"lat\":").append(result.lat).append(",\"lng\":").append(result.lng);
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        send(exchange, status, json);
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+}
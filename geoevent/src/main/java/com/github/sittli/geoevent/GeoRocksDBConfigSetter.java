@@ -0,0 +1,197 @@
+package com.github.sittli.geoevent;
+
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.utils.Time;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.state.RocksDBConfigSetter;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.BloomFilter;
+import org.rocksdb.Cache;
+import org.rocksdb.CompressionType;
+import org.rocksdb.LRUCache;
+import org.rocksdb.Options;
+import org.rocksdb.Statistics;
+import org.rocksdb.StatsLevel;
+import org.rocksdb.TickerType;
+import org.rocksdb.WriteBufferManager;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleSupplier;
+
+/*
+ * RocksDB settings of all state stores (rocksdb.config.setter), i.e. of the geo data store, the pending buffer, ...
+ * - memory: one block cache for all stores (geo.rocksdb.memory.bytes); the memtables (write buffers) of all stores
+ *   are charged to that cache (geo.rocksdb.write.buffer.ratio of it), as are index and filter blocks (high priority pool,
+ *   geo.rocksdb.index.filter.ratio), i.e. the off-heap memory does not grow with the number of store partitions
+ * - point reads (joins by address): full bloom filters with geo.rocksdb.bloom.bits.per.key (~1% false positives with 10),
+ *   filter and index blocks of L0 pinned in the cache
+ * - compression: geo.rocksdb.compression.<store> or geo.rocksdb.compression (none, snappy, zlib, lz4, lz4hc, zstd),
+ *   otherwise the Kafka Streams default (none)
+ * - statistics (geo.rocksdb.statistics, default true): exposed via JMX (kafka.geo:type=geo-rocksdb-metrics,store=...),
+ *   summed over the store partitions of this instance: block-cache-hit-ratio, block-cache-hit/miss-total,
+ *   bloom-filter-useful-total, memtable-hit/miss-total, bytes-read/written-total, write-stall-micros-total,
+ *   compaction-bytes-written-total
+ * Note: these metrics are a registry of their own, i.e. not part of KafkaStreams#metrics(): a config setter has no processor
+ *   context (no StreamsMetrics) and Kafka Streams 2.5 offers no gauges to register; with metrics.recording.level=DEBUG
+ *   Kafka Streams records its own RocksDB metrics (stream-state-metrics, per store partition), but only for stores whose
+ *   options carry no statistics, i.e. the statistics are not set (and not exposed here) then
+ * Note: the cache, the write buffer manager and the metrics are shared by all streams instances of the JVM and configured
+ *   by the first store that is opened; the cache limit is not strict, i.e. it may be exceeded briefly (pinned blocks)
+ * */
+public class GeoRocksDBConfigSetter implements RocksDBConfigSetter {
+
+    static final String MEMORY_BYTES_CONFIG = "geo.rocksdb.memory.bytes";
+    static final String WRITE_BUFFER_RATIO_CONFIG = "geo.rocksdb.write.buffer.ratio";
+    static final String INDEX_FILTER_RATIO_CONFIG = "geo.rocksdb.index.filter.ratio";
+    static final String BLOOM_BITS_PER_KEY_CONFIG = "geo.rocksdb.bloom.bits.per.key";
+// geo.rocksdb.compression.<store> overrides the setting for a single store
+    static final String COMPRESSION_CONFIG = "geo.rocksdb.compression";
+    static final String STATISTICS_CONFIG = "geo.rocksdb.statistics";
+
+    static final String GROUP = "geo-rocksdb-metrics";
+
+    private static Cache cache;
+    private static WriteBufferManager writeBufferManager;
+    private static Metrics metrics;
+// statistics of the open store partitions by store name
+    private static final Map<String, Set<Statistics>> statistics = new ConcurrentHashMap<>();
+
+// one instance per store partition (created by Kafka Streams)
+    private BloomFilter filter;
+    private Statistics storeStatistics;
+
+    @Override
+    public void setConfig(String storeName, Options options, Map<String, Object> configs) {
+        init(configs);
+
+        final BlockBasedTableConfig tableConfig = (BlockBasedTableConfig) options.tableFormatConfig();
+        tableConfig.setBlockCache(cache);
+        tableConfig.setCacheIndexAndFilterBlocks(true);
+        tableConfig.setCacheIndexAndFilterBlocksWithHighPriority(true);
+        tableConfig.setPinL0FilterAndIndexBlocksInCache(true);
+// full (not block based) filter
+        filter = new BloomFilter(intConfig(configs, BLOOM_BITS_PER_KEY_CONFIG, 10), false);
+        tableConfig.setFilter(filter);
+        options.setTableFormatConfig(tableConfig);
+        options.setWriteBufferManager(writeBufferManager);
+
+        final Object compression = configs.getOrDefault(COMPRESSION_CONFIG + "." + storeName, configs.get(COMPRESSION_CONFIG));
+        if (compression != null) {
+            options.setCompressionType(compressionType(compression.toString()));
+        }
+
+        if (statisticsEnabled(configs)) {
+            storeStatistics = new Statistics();
+            storeStatistics.setStatsLevel(StatsLevel.EXCEPT_DETAILED_TIMERS);
+            options.setStatistics(storeStatistics);
+            register(storeName, storeStatistics);
+        }
+    }
+
+    @Override
+    public void close(String storeName, Options options) {
+// the shared cache and write buffer manager stay open
+        if (storeStatistics != null) {
+            unregister(storeName, storeStatistics);
+        }
+        if (filter != null) {
+            filter.close();
+        }
+    }
+
+    private static synchronized void init(Map<String, Object> configs) {
+        if (cache != null) {
+            return;
+        }
+        final long memoryBytes = longConfig(configs, MEMORY_BYTES_CONFIG, 128L * 1024 * 1024);
+        final double writeBufferRatio = doubleConfig(configs, WRITE_BUFFER_RATIO_CONFIG, 0.25);
+        final double indexFilterRatio = doubleConfig(configs, INDEX_FILTER_RATIO_CONFIG, 0.1);
+        cache = new LRUCache(memoryBytes, -1, false, indexFilterRatio);
+        writeBufferManager = new WriteBufferManager((long) (memoryBytes * writeBufferRatio), cache);
+
+        metrics = new Metrics(new MetricConfig(), Collections.singletonList(new JmxReporter(LookupMetrics.JMX_PREFIX)), Time.SYSTEM);
+        metrics.addMetric(metrics.metricName("memory-budget-bytes", GROUP, "block cache capacity incl. write buffers"),
+                (Measurable) (config, now) -> memoryBytes);
+        metrics.addMetric(metrics.metricName("write-buffer-budget-bytes", GROUP, "write buffer share of the block cache"),
+                (Measurable) (config, now) -> memoryBytes * writeBufferRatio);
+    }
+
+    private static synchronized void register(String storeName, Statistics storeStatistics) {
+        final boolean known = statistics.containsKey(storeName);
+        statistics.computeIfAbsent(storeName, s -> ConcurrentHashMap.newKeySet()).add(storeStatistics);
+        if (known) {
+            return;
+        }
+        gauge(storeName, "block-cache-hit-ratio", "block cache hits per block read", () -> {
+            final long hits = sum(storeName, TickerType.BLOCK_CACHE_HIT);
+            final long reads = hits + sum(storeName, TickerType.BLOCK_CACHE_MISS);
+            return reads == 0 ? 0 : (double) hits / reads;
+        });
+        ticker(storeName, "block-cache-hit-total", "block cache hits (data, index and filter blocks)", TickerType.BLOCK_CACHE_HIT);
+        ticker(storeName, "block-cache-miss-total", "block cache misses (data, index and filter blocks)", TickerType.BLOCK_CACHE_MISS);
+        ticker(storeName, "bloom-filter-useful-total", "reads of absent keys answered by the bloom filter", TickerType.BLOOM_FILTER_USEFUL);
+        ticker(storeName, "memtable-hit-total", "reads answered by a memtable", TickerType.MEMTABLE_HIT);
+        ticker(storeName, "memtable-miss-total", "reads not answered by a memtable", TickerType.MEMTABLE_MISS);
+        ticker(storeName, "bytes-read-total", "bytes read by point reads", TickerType.BYTES_READ);
+        ticker(storeName, "bytes-written-total", "bytes written", TickerType.BYTES_WRITTEN);
+        ticker(storeName, "write-stall-micros-total", "microseconds writes were stalled", TickerType.STALL_MICROS);
+        ticker(storeName, "compaction-bytes-written-total", "bytes written by compactions", TickerType.COMPACT_WRITE_BYTES);
+    }
+
+    // under the lock of sum(), i.e. never read while closed
+    private static synchronized void unregister(String storeName, Statistics storeStatistics) {
+        statistics.getOrDefault(storeName, Collections.emptySet()).remove(storeStatistics);
+        storeStatistics.close();
+    }
+
+    private static void ticker(String storeName, String name, String description, TickerType ticker) {
+        gauge(storeName, name, description, () -> sum(storeName, ticker));
+    }
+
+    private static void gauge(String storeName, String name, String description, DoubleSupplier value) {
+        metrics.addMetric(metrics.metricName(name, GROUP, description, Collections.singletonMap("store", storeName)),
+                (Measurable) (config, now) -> value.getAsDouble());
+    }
+
+    private static synchronized long sum(String storeName, TickerType ticker) {
+        long sum = 0;
+        for (Statistics s : statistics.getOrDefault(storeName, Collections.emptySet())) {
+            sum += s.getTickerCount(ticker);
+        }
+        return sum;
+    }
+
+    private static boolean statisticsEnabled(Map<String, Object> configs) {
+        final boolean streamsRecorded = Sensor.RecordingLevel.DEBUG.name.equalsIgnoreCase(
+                String.valueOf(configs.get(StreamsConfig.METRICS_RECORDING_LEVEL_CONFIG)));
+        return !streamsRecorded && Boolean.parseBoolean(String.valueOf(configs.getOrDefault(STATISTICS_CONFIG, "true")));
+    }
+
+    private static CompressionType compressionType(String value) {
+        return "none".equalsIgnoreCase(value) ? CompressionType.NO_COMPRESSION
+                : CompressionType.valueOf(value.toUpperCase() + "_COMPRESSION");
+    }
+
+    private static int intConfig(Map<String, Object> configs, String key, int defaultValue) {
+        final Object value = configs.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value.toString());
+    }
+
+    private static long longConfig(Map<String, Object> configs, String key, long defaultValue) {
+        final Object value = configs.get(key);
+        return value == null ? defaultValue : Long.parseLong(value.toString());
+    }
+
+    private static double doubleConfig(Map<String, Object> configs, String key, double defaultValue) {
+        final Object value = configs.get(key);
+        return value == null ? defaultValue : Double.parseDouble(value.toString());
+    }
+
+}
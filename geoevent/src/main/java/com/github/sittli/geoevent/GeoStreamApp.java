@@ -1,29 +1,31 @@
 package com.github.sittli.geoevent;
 
-// import com.github.sittli.geodata.Event;
 import com.github.sittli.geodata.Event;
 import com.github.sittli.geodata.EventEnriched;
+import com.github.sittli.geodata.EventFailed;
 import com.github.sittli.geodata.EventRequest;
-// import com.github.sittli.geodata.EventResponse;
+import com.github.sittli.geodata.EventResponse;
 import io.confluent.kafka.serializers.AbstractKafkaAvroSerDeConfig;
 import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
 import org.apache.avro.Schema;
-import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.specific.SpecificRecord;
 import org.apache.kafka.clients.CommonClientConfigs;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 //import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
-import io.confluent.kafka.streams.serdes.avro.GenericAvroSerde;
 import org.apache.kafka.common.config.SaslConfigs;
 import org.apache.kafka.common.config.SslConfigs;
 import org.apache.kafka.common.serialization.Serde;
 import org.apache.kafka.common.serialization.Serdes;
 import org.apache.kafka.common.utils.Bytes;
 import org.apache.kafka.streams.KafkaStreams;
-import org.apache.kafka.streams.KeyValue;
 import org.apache.kafka.streams.StreamsBuilder;
 import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.Topology;
 import org.apache.kafka.streams.kstream.*;
+import org.apache.kafka.streams.processor.ProcessorContext;
 import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.TimestampedKeyValueStore;
+import org.apache.kafka.streams.state.ValueAndTimestamp;
 
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -39,6 +41,17 @@ public class GeoStreamApp {
     static final String GEO_EVENTDATA_STORE_TOPIC = "geo_eventdata_store";
     static final String GEO_EVENTDATA_PENDING_STORE_TOPIC = "geo_eventdata_pending_store";
     static final String GEO_EVENTDATA_ENRICHED_TOPIC = "geo_eventdata_enriched";
+    static final String GEO_EVENTDATA_UNRESOLVABLE_TOPIC = "geo_eventdata_unresolvable";
+    static final String GEO_EVENTDATA_FAILED_TOPIC = "geo_eventdata_failed";
+// how long an address reported as unresolvable is short-circuited (no further lookup requests)
+    static final String UNRESOLVABLE_TTL_MS_CONFIG = "geo.unresolvable.ttl.ms";
+// 'global' (default): every instance holds all geo data; 'partitioned': geo data is sharded over the instances
+    static final String STORE_MODE_CONFIG = "geo.store.mode";
+    static final String GEODATA_GLOBAL_STORE = "geodata-global-store";
+    static final String GEODATA_STORE = "geodata-store";
+    static final String UNRESOLVABLE_STORE = "geo-unresolvable-store";
+// 'true' prints the intermediate streams to stdout (debugging only; synchronous console I/O per record)
+    static final String DEBUG_PRINT_CONFIG = "debug.print";
     static Schema enrichSchema =null;
     static Properties extProps = new Properties();
 
@@ -60,17 +73,27 @@ public class GeoStreamApp {
         props.put(StreamsConfig.APPLICATION_ID_CONFIG,"geo-streams-app");
         props.put(StreamsConfig.CLIENT_ID_CONFIG,"geo-stream-app-client");
         props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG,"earliest");
+// never join responses of an aborted transaction of the lookup service (lookup.producer.mode=transactional)
+        props.put(StreamsConfig.consumerPrefix(ConsumerConfig.ISOLATION_LEVEL_CONFIG), "read_committed");
         props.put(AbstractKafkaAvroSerDeConfig.BASIC_AUTH_CREDENTIALS_SOURCE,"USER_INFO");
         props.put(AbstractKafkaAvroSerDeConfig.AUTO_REGISTER_SCHEMAS, true);
         props.put(StreamsConfig.DEFAULT_KEY_SERDE_CLASS_CONFIG, Serdes.String().getClass());
-        props.put(StreamsConfig.DEFAULT_VALUE_SERDE_CLASS_CONFIG, GenericAvroSerde.class);
+// all topics are read and written with the generated (specific) classes; the serdes are passed explicitly nevertheless
+        props.put(StreamsConfig.DEFAULT_VALUE_SERDE_CLASS_CONFIG, SpecificAvroSerde.class);
         props.put(CommonClientConfigs.SECURITY_PROTOCOL_CONFIG,"SASL_SSL"); // security.protocol
         props.put(SaslConfigs.SASL_MECHANISM, "PLAIN");
         props.put(SslConfigs.SSL_ENDPOINT_IDENTIFICATION_ALGORITHM_CONFIG, "https");
 // required for change-log topics
         props.put(StreamsConfig.REPLICATION_FACTOR_CONFIG, 3);
-
-        StreamsBuilder sb = new StreamsBuilder();
+// let the builder reuse source topics as changelogs and merge repartition topics
+// Note: changing this for an existing application id changes internal topic names (reset the application)
+        props.put(StreamsConfig.TOPOLOGY_OPTIMIZATION, StreamsConfig.OPTIMIZE);
+// shared block cache / write buffer budget, bloom filters, compression and statistics of the state stores (geo.rocksdb.*)
+        props.put(StreamsConfig.ROCKSDB_CONFIG_SETTER_CLASS_CONFIG, GeoRocksDBConfigSetter.class);
+// the query endpoint of this instance is published to the other instances (routing of lookups in a partitioned store)
+        if ( extProps.getProperty( GeoQueryService.LISTENER_CONFIG ) != null ) {
+            props.put(StreamsConfig.APPLICATION_SERVER_CONFIG, extProps.getProperty( GeoQueryService.LISTENER_CONFIG ));
+        }
 
 // configure the SerDe
         Map< String, String > srMap = new HashMap<>();
@@ -78,152 +101,370 @@ public class GeoStreamApp {
         srMap.put( "basic.auth.credentials.source","USER_INFO");
         srMap.put( "basic.auth.user.info",extProps.getProperty("schema.registry.basic.auth.user.info") );
         final Map<String, String> serdeConfig = srMap;
-        final Serde<GenericRecord> valueGenericAvroSerde = new GenericAvroSerde();
-// When you want to override serdes explicitly/selectively
-        valueGenericAvroSerde.configure(serdeConfig, false); // `false` for record values
 
+        final Topology topology = buildTopology( props, serdeConfig );
+        System.err.println( topology.describe() );
+        final boolean partitioned = "partitioned".equalsIgnoreCase( props.getProperty( STORE_MODE_CONFIG, "global" ) );
+
+// load the latest store snapshots into a new / wiped state dir, i.e. only the topic tail is restored (optional, see StoreSnapshots)
+        final Map<String, String> snapshotStores = new HashMap<>();
+// the geo data store is restored from its source topic
+        snapshotStores.put( partitioned ? GEODATA_STORE : GEODATA_GLOBAL_STORE, GEO_EVENTDATA_STORE_TOPIC );
+        snapshotStores.put( PendingEventBuffer.PENDING_STORE,
+                props.getProperty( StreamsConfig.APPLICATION_ID_CONFIG ) + "-" + PendingEventBuffer.PENDING_STORE + "-changelog" );
+        final StoreSnapshots snapshots = StoreSnapshots.fromConfig( props, snapshotStores );
+        if ( snapshots != null ) {
+            snapshots.restore();
+        }
+
+        KafkaStreams ks = new KafkaStreams( topology, props );
+        ks.setGlobalStateRestoreListener( new RestoreProgressListener() );
+        // start the streaming app
+        ks.start();
+        System.out.println("topology:" + ks.toString());
+        if ( snapshots != null ) {
+            snapshots.start();
+        }
+
+// serve address lookups from the geo data store to other services (optional, see GeoQueryService)
+        GeoQueryService queryService = null;
+        try {
+            queryService = GeoQueryService.fromConfig( props, ks, partitioned ? GEODATA_STORE : GEODATA_GLOBAL_STORE, partitioned );
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if ( queryService != null ) {
+            queryService.start();
+            Runtime.getRuntime().addShutdownHook( new Thread (queryService::close));
+        }
+
+        // close application gracefully (incl. lambda function)
+        Runtime.getRuntime().addShutdownHook( new Thread (() -> {
+            ks.close();
+// the stores are closed (and checkpointed) now, i.e. the final snapshot is consistent
+            if ( snapshots != null ) {
+                snapshots.close();
+                snapshots.snapshot();
+            }
+        }));
+
+
+    }
+
+    /*
+     * cfg: the streams config incl. the external (geo.*) settings; serdeConfig: the schema registry settings
+     * */
+    public static Topology buildTopology(Properties cfg, Map<String, String> serdeConfig) {
+        StreamsBuilder sb = new StreamsBuilder();
+
+// the generated classes instead of GenericRecord: fields are read by position as primitives/Strings
+// (no lookup by field name and no double -> String -> double round trip in the joiners)
+// When you want to override serdes explicitly/selectively
+        final Serde<Event> evAvroSerde = new SpecificAvroSerde<>();
+        evAvroSerde.configure( serdeConfig, false); // `false` for record values
+        final Serde<EventResponse> erespAvroSerde = new SpecificAvroSerde<>();
+        erespAvroSerde.configure( serdeConfig, false);
         final Serde<EventEnriched> eeAvroSerde = new SpecificAvroSerde<>();
         eeAvroSerde.configure( serdeConfig, false);
+        final Serde<EventFailed> efAvroSerde = new SpecificAvroSerde<>();
+        efAvroSerde.configure( serdeConfig, false);
+        final Serde<EventRequest> erAvroSerde = new SpecificAvroSerde<>();
+        erAvroSerde.configure( serdeConfig, false);
+        final long lookupTimeoutMs = Long.parseLong( cfg.getProperty( OutstandingRequestTransformer.LOOKUP_TIMEOUT_MS_CONFIG, "60000" ) );
+        final int maxReissues = Integer.parseInt( cfg.getProperty( OutstandingRequestTransformer.MAX_REISSUES_CONFIG, "3" ) );
+        final long sweepIntervalMs = Long.parseLong( cfg.getProperty( StoreSweeper.INTERVAL_MS_CONFIG, "60000" ) );
+        final int sweepBatchSize = Integer.parseInt( cfg.getProperty( StoreSweeper.BATCH_SIZE_CONFIG, "1000" ) );
+        final long pendingTtlMs = Long.parseLong( cfg.getProperty( StoreSweeper.PENDING_TTL_MS_CONFIG, "86400000" ) );
+        final long storeTtlMs = Long.parseLong( cfg.getProperty( StoreSweeper.STORE_TTL_MS_CONFIG, "2592000000" ) );
+        final long unresolvableTtlMs = Long.parseLong( cfg.getProperty( UNRESOLVABLE_TTL_MS_CONFIG, "3600000" ) );
+        final int pendingMaxEvents = Integer.parseInt( cfg.getProperty( PendingEventBuffer.MAX_EVENTS_CONFIG, "100" ) );
+        final boolean debugPrint = Boolean.parseBoolean( cfg.getProperty( DEBUG_PRINT_CONFIG, "false" ) );
 ///////////////////////
 // stream of raw events
 ///////////////////////
-        KStream<String, GenericRecord> geoStream = sb.stream(GEO_EVENTDATA_TOPIC);
+        KStream<String, Event> geoStream = sb.stream(GEO_EVENTDATA_TOPIC, Consumed.with( Serdes.String(), evAvroSerde ));
 
 // introduce artificial key
 //        Random r = new Random();
-//        KStream<String, GenericRecord> geoKeyedStream = geoStream.map(
+//        KStream<String, Event> geoKeyedStream = geoStream.map(
 //                (key, value) -> KeyValue.pair( String.valueOf(r.nextInt(10)), value));
 
-// use address as key
-// todo: all lower case, trim and remove duplicate white space
-        KStream<String, GenericRecord> geoKeyedStream = geoStream.map(
-                (key, value) -> KeyValue.pair( value.get("address").toString(), value));
+// use the canonical address as key (lower case, folded umlauts, no punctuation, sorted tokens)
+// Note: the lookup service keys its responses with the canonical address as well, so the response join needs no re-keying
+        final AddressCanonicalizer canonicalizer = AddressCanonicalizer.fromConfig( cfg );
+// the addresses rewritten to their canonical form are metered, see GeoStreamMetrics
+        KStream<String, Event> geoKeyedStream = geoStream.transform(
+                GeoStreamMetrics.meterCanonicalKey( canonicalizer, Event::getAddress ) );
 
 
 ///////////////////////////////////
 // stream of lookup response events
 ///////////////////////////////////
-        KStream<String, GenericRecord> msResponseStream = sb.stream(GEO_EVENTDATA_RESPONSE_TOPIC);
-
+// a response completes the outstanding lookup request of its address
+        sb.addStateStore( OutstandingRequestTransformer.storeBuilder( erAvroSerde ) );
+        KStream<String, EventResponse> msResponseStream = sb.stream(GEO_EVENTDATA_RESPONSE_TOPIC, Consumed.with( Serdes.String(), erespAvroSerde ))
+                .transformValues( OutstandingRequestTransformer.<EventResponse>completion(), OutstandingRequestTransformer.OUTSTANDING_STORE );
+
+//////////////////////////////////////////////////////////////////////
+// stream of addresses the lookup service reported as unresolvable
+// and the (negative) table of these addresses (address -> reason, ts)
+//////////////////////////////////////////////////////////////////////
+        KStream<String, EventFailed> msUnresolvableStream = sb.stream(GEO_EVENTDATA_UNRESOLVABLE_TOPIC,
+                Consumed.with( Serdes.String(), efAvroSerde ));
+        msUnresolvableStream.toTable(
+                Materialized.<String, EventFailed, KeyValueStore<Bytes, byte[]>>as(
+                UNRESOLVABLE_STORE /* table/store name */)
+                .withKeySerde(Serdes.String()) /* key serde */
+                .withValueSerde( efAvroSerde ) /* value serde */ );
+// age the negative cache: evict addresses reported more than the ttl ago (tombstones to the table's source topic),
+// i.e. the table does not grow with every address ever reported; the next event of an evicted address is looked up again
+        msUnresolvableStream.transform(
+                StoreSweeper.<EventFailed, EventFailed>supplier( UNRESOLVABLE_STORE, unresolvableTtlMs, sweepIntervalMs, sweepBatchSize, false ),
+                UNRESOLVABLE_STORE )
+                .to(GEO_EVENTDATA_UNRESOLVABLE_TOPIC, Produced.with( Serdes.String(), efAvroSerde ) );
+
+        final ValueJoiner<Event, EventEnriched, EventEnriched> maybeEnrichJoiner = GeoStreamApp::enrich;
+
+        KStream<String, EventEnriched> geoMaybeEnrichedStream;
+        final boolean partitioned = "partitioned".equalsIgnoreCase( cfg.getProperty( STORE_MODE_CONFIG, "global" ) );
+        if ( partitioned ) {
+//////////////////////////////////////////////////////////////////////////////
+// partitioned KTable with lookup response info (city -> lat, lng)
+// each instance only holds (and restores) the partitions assigned to it
+// Note: geo_eventdata_store must have the same number of partitions as the
+// (repartitioned) address-keyed event stream, i.e. as geo_eventdata
+//////////////////////////////////////////////////////////////////////////////
+            KTable<String, EventEnriched> geoDataTable = sb.table(GEO_EVENTDATA_STORE_TOPIC,
+            Materialized.<String, EventEnriched, KeyValueStore<Bytes, byte[]>>as(
+                    GEODATA_STORE /* table/store name */)
+                    .withKeySerde(Serdes.String()) /* key serde */
+                    .withValueSerde( eeAvroSerde ) /* value serde */
+            );
+// one (repartitioning) leftJoin
+            geoMaybeEnrichedStream = geoKeyedStream.leftJoin(geoDataTable, maybeEnrichJoiner,
+                    Joined.with( Serdes.String(), evAvroSerde, eeAvroSerde ) );
+        } else {
 /////////////////////////////////////////////////////////////
 // global KTable with lookup response info (city -> lat, lng)
 /////////////////////////////////////////////////////////////
 // Note, that this topic name is not the changelog topic;
 // Instead, the table will be constructed from this topic and it is expected that this topic is maintained by someone else
-// todo: replace with a regular table (like for pending events)
-        GlobalKTable<String, GenericRecord> geoDataGT = sb.globalTable(GEO_EVENTDATA_STORE_TOPIC,
-        Materialized.<String, GenericRecord, KeyValueStore<Bytes, byte[]>>as(
-                "geodata-global-store" /* table/store name */)
-                .withKeySerde(Serdes.String()) /* key serde */
-                .withValueSerde( valueGenericAvroSerde ) /* value serde */
-        );
-
-
-
-////////////////////////////////////////////////////////////////////////////////////////////////////////////
-// Stream that only holds successful matches (join)   (left / stream / Event; right / table / EventEnriched)
-////////////////////////////////////////////////////////////////////////////////////////////////////////////
-        KStream<String, EventEnriched> geoEnrichedStream =
-                geoKeyedStream.join(geoDataGT,
-                        (key, value) -> key, 
-                        ( leftValue, rightValue ) -> ( new EventEnriched( leftValue.get("address").toString(), leftValue.get("eventtype").toString(),
-                                Double.valueOf(rightValue.get("lat").toString()),Double.valueOf( rightValue.get("lng").toString()))  )
-                );
-        geoEnrichedStream.print(Printed.toSysOut());
-// publish successful matches downstream
-        geoEnrichedStream.to(GEO_EVENTDATA_ENRICHED_TOPIC);
+            GlobalKTable<String, EventEnriched> geoDataGT = sb.globalTable(GEO_EVENTDATA_STORE_TOPIC,
+            Materialized.<String, EventEnriched, KeyValueStore<Bytes, byte[]>>as(
+                    GEODATA_GLOBAL_STORE /* table/store name */)
+                    .withKeySerde(Serdes.String()) /* key serde */
+                    .withValueSerde( eeAvroSerde ) /* value serde */
+            );
 
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
 // Stream that holds matches or missing matches (leftJoin) (left / stream / Event; right / table, EventEnriched)
 ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
-        KStream<String, EventEnriched> geoMaybeEnrichedStream =
-                geoKeyedStream.leftJoin(geoDataGT,
-                        (key, value) -> key, 
-                        ( leftValue, rightValue ) -> ( new EventEnriched( leftValue.get("address").toString(), leftValue.get("eventtype").toString(),
-                                rightValue == null ? null : Double.valueOf(rightValue.get("lat").toString()),rightValue == null ? null : Double.valueOf( rightValue.get("lng").toString()))  )
-                );
-        geoMaybeEnrichedStream.print(Printed.toSysOut());
+// Note: this used to be a join for the successful matches plus this leftJoin, i.e. two store reads per event
+            geoMaybeEnrichedStream = geoKeyedStream.leftJoin(geoDataGT, (key, value) -> key, maybeEnrichJoiner);
+        }
+        print( debugPrint, geoMaybeEnrichedStream, "maybe-enriched" );
+
+/////////////////////////////////////////////////////////////////////////////////////////////
+// split the leftJoin result into successful matches and events that failed enrichment
+/////////////////////////////////////////////////////////////////////////////////////////////
+// branch() takes its predicates as generic varargs
+        @SuppressWarnings("unchecked")
+        KStream<String, EventEnriched>[] matchStreams = geoMaybeEnrichedStream.branch(
+                (k,v) -> v.getLat() != null,
+                (k,v) -> true
+        );
+// join hits/misses and the end-to-end latency of the hits are metered, see GeoStreamMetrics
+        KStream<String, EventEnriched> geoEnrichedStream = matchStreams[0].transformValues( GeoStreamMetrics.meterJoin( true ) );
+        print( debugPrint, geoEnrichedStream, "enriched" );
+// publish successful matches downstream
+        geoEnrichedStream.to(GEO_EVENTDATA_ENRICHED_TOPIC, Produced.with( Serdes.String(), eeAvroSerde ) );
+
+// age the cache: evict geo data that has not been refreshed within the ttl (tombstones to the table's source topic)
+// Note: a global store is held by every instance, so only the task of partition 0 sweeps it
+        if ( partitioned ) {
+            geoMaybeEnrichedStream.transform(
+                    StoreSweeper.<EventEnriched, EventEnriched>supplier( GEODATA_STORE, storeTtlMs, sweepIntervalMs, sweepBatchSize, false ), GEODATA_STORE )
+                    .to(GEO_EVENTDATA_STORE_TOPIC, Produced.with( Serdes.String(), eeAvroSerde ) );
+        } else {
+            geoMaybeEnrichedStream.transform(
+                    StoreSweeper.<EventEnriched, EventEnriched>supplier( GEODATA_GLOBAL_STORE, storeTtlMs, sweepIntervalMs, sweepBatchSize, true ) )
+                    .to(GEO_EVENTDATA_STORE_TOPIC, Produced.with( Serdes.String(), eeAvroSerde ) );
+        }
 
 ///////////////////////////////////////////////////
 //  Stream that holds events that failed enrichment
 ///////////////////////////////////////////////////
-        KStream<String, EventEnriched> missingLatLngStream = geoMaybeEnrichedStream.filter( (k,v ) -> v.get("lat") == null );
-        missingLatLngStream.print(Printed.toSysOut());
-
-// request has a different schema
-        KStream<String, EventRequest> mappedMissingLatLngStream = missingLatLngStream.map(
-                (k,v) -> KeyValue.pair( k, new EventRequest( v.getAddress() ))
-        );
-        mappedMissingLatLngStream.print(Printed.toSysOut());
+        KStream<String, EventEnriched> missingLatLngStream = matchStreams[1].transformValues( GeoStreamMetrics.meterJoin( false ) );
+        print( debugPrint, missingLatLngStream, "missing" );
 
 // pend no-match events
-// Note: This requires a key for a compacted topic
 // Note: This is a different schema, as we need to pend the eventtype as well
-// through() avoids an additional repartitioning topic
-// However, adding through now lead to another StreamsException in the below toTable()
-// This was solved with an additional Produced... argument with the right SerDes
-        KStream<String, EventEnriched> pendingStream = missingLatLngStream.map(
-                (k,v) -> KeyValue.pair( k, new EventEnriched( v.getAddress(), v.getEventtype(), null, null ) )
-        ).through(GEO_EVENTDATA_PENDING_STORE_TOPIC, Produced.with( Serdes.String(), eeAvroSerde ) );
-
-        pendingStream.print(Printed.toSysOut());
-
-//////////////////////////////////
-// table that holds pending events
-//////////////////////////////////
-        KTable<String, EventEnriched> pendingGT2;
-// the following line resulted in org.apache.kafka.streams.errors.StreamsException
-//        pendingGT2 = pendingStream.toTable(Materialized.as("geo-pending-store"));
-
-// new with 55; directly materialize
-// previous map() results in a repartition topic (although not necessary)
-        pendingGT2 = pendingStream.toTable( Materialized.<String, EventEnriched, KeyValueStore<Bytes, byte[]>>as(
-                "geo-pending-store" /* table/store name */)
-                .withKeySerde(Serdes.String()) /* key serde */
-                .withValueSerde( eeAvroSerde ) /* value serde */ );
+// Note: the leftJoin already yields the pending event (lat, lng = null), the former map() to a new EventEnriched is gone
+        KStream<String, EventEnriched> pendingStream;
+        if ( partitioned ) {
+// the (repartitioned) join result is already partitioned by address, i.e. co-partitioned with the response topics
+            pendingStream = missingLatLngStream;
+        } else {
+// through() is the only repartitioning of the miss path (the address key was introduced by map() above)
+// Note: every event of an address is buffered (see PendingEventBuffer), so the pending topic must not be compacted
+// (cleanup.policy=delete, see start.sh); repartition() would manage the topic, but requires Kafka Streams 2.6
+// Note: adding through lead to a StreamsException further down; this was solved with a Produced... argument with the right SerDes
+            pendingStream = missingLatLngStream.through(GEO_EVENTDATA_PENDING_STORE_TOPIC, Produced.with( Serdes.String(), eeAvroSerde ) );
+        }
+
+        print( debugPrint, pendingStream, "pending" );
+
+// short-circuit addresses that are known to be unresolvable (negative cache with ttl, see checkUnresolvable)
+// Note: this used to be a leftJoin with the table, whose joiner had no access to the record timestamp
+// branch() takes its predicates as generic varargs
+        @SuppressWarnings("unchecked")
+        KStream<String, SpecificRecord>[] checkedStreams = pendingStream.filter( (k,v) -> v != null )
+                .transformValues( checkUnresolvable( unresolvableTtlMs ), UNRESOLVABLE_STORE )
+                .branch(
+                        (k,v) -> v instanceof EventFailed,
+                        (k,v) -> true
+                );
+        checkedStreams[0].mapValues( v -> (EventFailed) v ).to( GEO_EVENTDATA_FAILED_TOPIC, Produced.with( Serdes.String(), efAvroSerde ) );
+        KStream<String, EventEnriched> lookupStream = checkedStreams[1].mapValues( v -> (EventEnriched) v );
+
+//////////////////////////////////////////////////////////////////////////////////////////
+// buffer that holds all pending events per address (not only the last one, see PendingEventBuffer)
+//////////////////////////////////////////////////////////////////////////////////////////
+// the previous design held the pending events in a table (one event per address):
+//        pendingGT2 = lookupStream.merge( pendingTombstoneStream ).toTable( Materialized.<String, EventEnriched, KeyValueStore<Bytes, byte[]>>as(
+//                "geo-pending-store" /* table/store name */)
+//                .withKeySerde(Serdes.String()) /* key serde */
+//                .withValueSerde( eeAvroSerde ) /* value serde */ );
+// i.e. further events with another eventtype for the same address replaced the buffered one and were lost
+        sb.addStateStore( PendingEventBuffer.storeBuilder( eeAvroSerde ) );
+        KStream<String, EventEnriched> bufferedStream = lookupStream.transformValues(
+                PendingEventBuffer.append( pendingMaxEvents ), PendingEventBuffer.PENDING_STORE );
 
+// request has a different schema
+// only the first pending event per address issues a request (until the response arrives or the request times out)
+// a request that is not answered after max.reissues re-issues is given up (as if the lookup service reported the address)
+        @SuppressWarnings("unchecked")
+        KStream<String, SpecificRecord>[] requestStreams = bufferedStream.transform(
+                () -> new OutstandingRequestTransformer( lookupTimeoutMs, maxReissues, sweepBatchSize ), OutstandingRequestTransformer.OUTSTANDING_STORE
+        ).branch(
+                (k,v) -> v instanceof EventFailed,
+                (k,v) -> true
+        );
+        requestStreams[0].mapValues( v -> (EventFailed) v ).to( GEO_EVENTDATA_UNRESOLVABLE_TOPIC, Produced.with( Serdes.String(), efAvroSerde ) );
+        KStream<String, EventRequest> mappedMissingLatLngStream = requestStreams[1].mapValues( v -> (EventRequest) v );
+        print( debugPrint, mappedMissingLatLngStream, "request" );
 
 // todo: instead of writing to a topic, reduce to the table (new 5.5 toTable); this will eliminate the race condition
 // in the previous design, the event was published to the given topic and async read into a prior table definition resulting in potential race conditions
 // -> done
 // todo: remove pending events, that have been enriched
+// -> done (released and removed from the pending buffer, see below)
 // todo: punctuator to age the cache
+// -> done (StoreSweeper)
+// todo: keep all pending events of an address (not only the last one)
+// -> done (PendingEventBuffer)
+
+// evict pending events that have not been resolved within the ttl
+// Note: the buffer is not built from a topic, so the sweeper deletes from the store directly
+        pendingStream.transform(
+                StoreSweeper.<EventEnriched, EventEnriched>inPlace( PendingEventBuffer.PENDING_STORE, pendingTtlMs, sweepIntervalMs, sweepBatchSize ),
+                PendingEventBuffer.PENDING_STORE );
 
 
 // route no-match events to lookup service
 // Note that we do this after we materialize the local state store for pending requests
-        mappedMissingLatLngStream.to(GEO_EVENTDATA_REQUEST_TOPIC);
+        mappedMissingLatLngStream.to(GEO_EVENTDATA_REQUEST_TOPIC, Produced.with( Serdes.String(), erAvroSerde ) );
 
 
-///////////////////////////////////////////////////////////////////////////////////////////////////////////
-// Stream that holds enriched pending requests (left / stream / EventResponse; right / table, EventEnriched
-///////////////////////////////////////////////////////////////////////////////////////////////////////////
+///////////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Stream that holds enriched pending requests (left / stream / EventResponse; right / buffer, EventEnriched)
+// a response releases (and removes) all events buffered for its address, in arrival order
+// the end-to-end latency of the released events is metered (from their original event timestamp)
+///////////////////////////////////////////////////////////////////////////////////////////////////////////////
         KStream<String, EventEnriched> resolvedPendingStream =
-                msResponseStream.join( pendingGT2,
-                        ( resp, tab ) -> new EventEnriched( resp.get("address").toString(), tab.getEventtype(),
-                                Double.valueOf(resp.get("lat").toString()), Double.valueOf(resp.get("lng").toString())) );
-        resolvedPendingStream.print(Printed.toSysOut());
+                msResponseStream.flatTransform( PendingEventBuffer.<EventResponse, EventEnriched>meteredRelease(
+                        GeoStreamApp::resolve ),
+                        PendingEventBuffer.PENDING_STORE );
+        print( debugPrint, resolvedPendingStream, "resolved" );
 
 // update event store
 // Note, this needs to be changed similar to the pending store
-        resolvedPendingStream.to(GEO_EVENTDATA_STORE_TOPIC);
+        resolvedPendingStream.to(GEO_EVENTDATA_STORE_TOPIC, Produced.with( Serdes.String(), eeAvroSerde ) );
 
 
 // Note that this is a simplification
 // Technically the output stream does not have to have the identical schema of the store
-        resolvedPendingStream.to(GEO_EVENTDATA_ENRICHED_TOPIC);
-
+        resolvedPendingStream.to(GEO_EVENTDATA_ENRICHED_TOPIC, Produced.with( Serdes.String(), eeAvroSerde ) );
+
+//////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Stream that holds failed pending requests (left / stream / EventFailed; right / buffer, EventEnriched)
+//////////////////////////////////////////////////////////////////////////////////////////////////////////
+// Note: the tombstones of the sweeper neither complete a request nor release events (the address may be pending again)
+        KStream<String, EventFailed> failedPendingStream =
+                msUnresolvableStream
+                        .filter( (k,v) -> v != null )
+                        .transformValues( OutstandingRequestTransformer.<EventFailed>completion(), OutstandingRequestTransformer.OUTSTANDING_STORE )
+                        .flatTransform( PendingEventBuffer.<EventFailed, EventFailed>release(
+                                ( failed, tab ) -> new EventFailed( tab.getAddress(), tab.getEventtype(), failed.getReason(), failed.getTimestamp() ) ),
+                                PendingEventBuffer.PENDING_STORE );
+        failedPendingStream.to( GEO_EVENTDATA_FAILED_TOPIC, Produced.with( Serdes.String(), efAvroSerde ) );
+
+
+        return sb.build( cfg );
+    }
 
-        System.err.println( sb.build().describe() );
-        KafkaStreams ks = new KafkaStreams( sb.build(), props );
-        // start the streaming app
-        ks.start();
-        System.out.println("topology:" + ks.toString());
+    /*
+     * joiner of an event and its geo data (null, if unknown)
+     * */
+    static EventEnriched enrich(Event event, EventEnriched geo) {
+        return new EventEnriched( event.getAddress(), event.getEventtype(),
+                geo == null ? null : geo.getLat(), geo == null ? null : geo.getLng() );
+    }
 
-        // close application gracefully (incl. lambda function)
-        Runtime.getRuntime().addShutdownHook( new Thread (ks::close));
+    /*
+     * joiner of a lookup response and a pending event
+     * the event keeps its own spelling of the address, the response carries the spelling of the first lookup request
+     * */
+    static EventEnriched resolve(EventResponse response, EventEnriched pending) {
+        return new EventEnriched( pending.getAddress(), pending.getEventtype(), response.getLat(), response.getLng() );
+    }
 
+    /*
+     * negative cache: turns an event of an address reported as unresolvable into a failed event, unless the report is
+     * older than the ttl (relative to the event's record timestamp, i.e. deterministic on reprocessing); passes all other events
+     * */
+    static ValueTransformerWithKeySupplier<String, EventEnriched, SpecificRecord> checkUnresolvable(long ttlMs) {
+        return () -> new ValueTransformerWithKey<String, EventEnriched, SpecificRecord>() {
+
+            private ProcessorContext context;
+            private TimestampedKeyValueStore<String, EventFailed> store;
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public void init(ProcessorContext context) {
+                this.context = context;
+                this.store = (TimestampedKeyValueStore<String, EventFailed>) context.getStateStore( UNRESOLVABLE_STORE );
+            }
+
+            @Override
+            public SpecificRecord transform(String key, EventEnriched event) {
+                final ValueAndTimestamp<EventFailed> entry = store.get( key );
+                final EventFailed unresolvable = entry == null ? null : entry.value();
+                return unresolvable != null && context.timestamp() - unresolvable.getTimestamp() < ttlMs
+                        ? new EventFailed( event.getAddress(), event.getEventtype(), unresolvable.getReason(), unresolvable.getTimestamp() )
+                        : event;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
 
+    private static <V> void print(boolean debugPrint, KStream<String, V> stream, String label) {
+        if ( debugPrint ) {
+            stream.print( Printed.<String, V>toSysOut().withLabel( label ) );
+        }
     }
 
     public static Properties loadExternalConfig(String configFile) throws IOException {
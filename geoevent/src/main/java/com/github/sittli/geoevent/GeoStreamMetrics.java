@@ -0,0 +1,213 @@
+package com.github.sittli.geoevent;
+
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.CumulativeCount;
+import org.apache.kafka.common.metrics.stats.CumulativeSum;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Percentile;
+import org.apache.kafka.common.metrics.stats.Percentiles;
+import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.common.metrics.stats.Value;
+import org.apache.kafka.common.metrics.stats.WindowedCount;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.kstream.TransformerSupplier;
+import org.apache.kafka.streams.kstream.ValueTransformerWithKey;
+import org.apache.kafka.streams.kstream.ValueTransformerWithKeySupplier;
+import org.apache.kafka.streams.processor.ProcessorContext;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/*
+ * Metrics of the enrichment topology
+ * - registered with the Kafka Streams metrics, i.e. exposed via JMX with them (kafka.streams:type=geo-stream-metrics,thread-id=...)
+ * - join-hit-ratio, join-hit-rate / -total, join-miss-rate / -total: leftJoin against the geo data (hit = lat/lng known)
+ * - e2e-latency-avg / -max / -p50 / -p99 [ms]: from the event timestamp to the enriched output (hits and released pending events)
+ * - address-rewritten-ratio / -total: events whose address was not canonical (a spelling variant merged into the canonical form)
+ * - pending-dropped-rate / -total: pending events dropped because their address had geo.pending.max.events buffered already
+ * - <store>-entries: approx. number of entries of the swept stores (e.g. the pending buffer), updated by the sweeper;
+ *   per task (tag task-id), as every task holds its own store partition (a global store is reported by each task)
+ * Note: the other sensors are thread-level, i.e. shared by all tasks of a stream thread
+ * */
+public class GeoStreamMetrics {
+
+    static final String GROUP = "geo-stream-metrics";
+
+// upper bound of the latency histogram (larger values end up in the last bucket) and its size (4 bytes per bucket, i.e. 4096 buckets)
+// the bucket width grows linearly (Percentiles.BucketSizing.LINEAR): ~1 ms at 100 ms, ~4 ms at 1 s, ~12 ms at 10 s, ~30 ms at 60 s
+    private static final double MAX_LATENCY_MS = 60_000;
+    private static final int HISTOGRAM_BYTES = 16384;
+
+    private GeoStreamMetrics() {
+    }
+
+    /*
+     * records a hit (1) or a miss (0) of the geo data join; the average is the hit ratio
+     * */
+    static Sensor joinSensor(ProcessorContext context) {
+        final Sensor sensor = sensor(context, "join");
+        if (!sensor.hasMetrics()) {
+            final Map<String, String> tags = tags();
+            sensor.add(new MetricName("join-hit-ratio", GROUP, "share of events found in the geo data", tags), new Avg());
+            sensor.add(new MetricName("join-hit-rate", GROUP, "events found in the geo data per second", tags), new Rate());
+            sensor.add(new MetricName("join-hit-total", GROUP, "events found in the geo data", tags), new CumulativeSum());
+            sensor.add(new MetricName("join-rate", GROUP, "joined events per second", tags), new Rate(new WindowedCount()));
+        }
+        return sensor;
+    }
+
+    static Sensor joinMissSensor(ProcessorContext context) {
+        final Sensor sensor = sensor(context, "join-miss");
+        if (!sensor.hasMetrics()) {
+            final Map<String, String> tags = tags();
+            sensor.add(new MetricName("join-miss-rate", GROUP, "events not found in the geo data per second", tags), new Rate(new WindowedCount()));
+            sensor.add(new MetricName("join-miss-total", GROUP, "events not found in the geo data", tags), new CumulativeCount());
+        }
+        return sensor;
+    }
+
+    static Sensor latencySensor(ProcessorContext context) {
+        final Sensor sensor = sensor(context, "e2e-latency");
+        if (!sensor.hasMetrics()) {
+            final Map<String, String> tags = tags();
+            sensor.add(new MetricName("e2e-latency-avg", GROUP, "ms from the event timestamp to the enriched output", tags), new Avg());
+            sensor.add(new MetricName("e2e-latency-max", GROUP, "ms from the event timestamp to the enriched output", tags), new Max());
+            sensor.add(new Percentiles(HISTOGRAM_BYTES, MAX_LATENCY_MS, Percentiles.BucketSizing.LINEAR,
+                    new Percentile(new MetricName("e2e-latency-p50", GROUP, "median ms to the enriched output", tags), 50),
+                    new Percentile(new MetricName("e2e-latency-p99", GROUP, "99th percentile ms to the enriched output", tags), 99)));
+        }
+        return sensor;
+    }
+
+    /*
+     * task-level, i.e. to be removed when the task is closed (see StoreSweeper)
+     * */
+    static Sensor entriesSensor(ProcessorContext context, String storeName) {
+        final Sensor sensor = sensor(context, context.taskId() + "." + storeName + "-entries");
+        if (!sensor.hasMetrics()) {
+            final Map<String, String> tags = new HashMap<>(tags());
+            tags.put("task-id", context.taskId().toString());
+            sensor.add(new MetricName(storeName + "-entries", GROUP, "approx. number of entries in the task's partition of " + storeName, tags),
+                    new Value());
+        }
+        return sensor;
+    }
+
+    static Sensor addressSensor(ProcessorContext context) {
+        final Sensor sensor = sensor(context, "address-rewritten");
+        if (!sensor.hasMetrics()) {
+            final Map<String, String> tags = tags();
+            sensor.add(new MetricName("address-rewritten-ratio", GROUP, "share of events whose address was not canonical", tags), new Avg());
+            sensor.add(new MetricName("address-rewritten-total", GROUP, "events whose address was not canonical", tags), new CumulativeSum());
+        }
+        return sensor;
+    }
+
+    static Sensor pendingDroppedSensor(ProcessorContext context) {
+        final Sensor sensor = sensor(context, "pending-dropped");
+        if (!sensor.hasMetrics()) {
+            final Map<String, String> tags = tags();
+            sensor.add(new MetricName("pending-dropped-rate", GROUP, "pending events dropped (buffer of the address full) per second", tags),
+                    new Rate(new WindowedCount()));
+            sensor.add(new MetricName("pending-dropped-total", GROUP, "pending events dropped (buffer of the address full)", tags),
+                    new CumulativeCount());
+        }
+        return sensor;
+    }
+
+    /*
+     * keys the values by their canonical address and records whether the address was rewritten (1) or not (0)
+     * */
+    public static <V> TransformerSupplier<String, V, KeyValue<String, V>> meterCanonicalKey(AddressCanonicalizer canonicalizer,
+                                                                                          Function<V, String> address) {
+        return () -> new MeterCanonicalKey<>(canonicalizer, address);
+    }
+
+    /*
+     * records join hits (incl. the end-to-end latency) or misses; passes the value unchanged
+     * */
+    public static <V> ValueTransformerWithKeySupplier<String, V, V> meterJoin(boolean hit) {
+        return () -> new MeterJoin<>(hit);
+    }
+
+    private static Sensor sensor(ProcessorContext context, String name) {
+        return context.metrics().addSensor("geo." + Thread.currentThread().getName() + "." + name, Sensor.RecordingLevel.INFO);
+    }
+
+    private static Map<String, String> tags() {
+        return Collections.singletonMap("thread-id", Thread.currentThread().getName());
+    }
+
+    static class MeterCanonicalKey<V> implements Transformer<String, V, KeyValue<String, V>> {
+
+        private final AddressCanonicalizer canonicalizer;
+        private final Function<V, String> address;
+        private Sensor rewritten;
+
+        MeterCanonicalKey(AddressCanonicalizer canonicalizer, Function<V, String> address) {
+            this.canonicalizer = canonicalizer;
+            this.address = address;
+        }
+
+        @Override
+        public void init(ProcessorContext context) {
+            this.rewritten = addressSensor(context);
+        }
+
+        @Override
+        public KeyValue<String, V> transform(String key, V value) {
+            final String original = address.apply(value);
+            final String canonical = canonicalizer.canonicalize(original);
+            rewritten.record(canonical.equals(original) ? 0 : 1);
+            return KeyValue.pair(canonical, value);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static class MeterJoin<V> implements ValueTransformerWithKey<String, V, V> {
+
+        private final boolean hit;
+        private ProcessorContext context;
+        private Sensor join;
+        private Sensor miss;
+        private Sensor latency;
+
+        MeterJoin(boolean hit) {
+            this.hit = hit;
+        }
+
+        @Override
+        public void init(ProcessorContext context) {
+            this.context = context;
+            this.join = joinSensor(context);
+            this.miss = joinMissSensor(context);
+            this.latency = latencySensor(context);
+        }
+
+        @Override
+        public V transform(String key, V value) {
+            if (hit) {
+                final long now = System.currentTimeMillis();
+                join.record(1, now);
+                latency.record(now - context.timestamp(), now);
+            } else {
+                join.record(0);
+                miss.record();
+            }
+            return value;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
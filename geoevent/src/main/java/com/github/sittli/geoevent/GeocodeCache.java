@@ -0,0 +1,136 @@
+package com.github.sittli.geoevent;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.google.maps.model.LatLng;
+
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/*
+ * Bounded in-memory cache in front of the (external) geocoder
+ * - size and ttl are configurable via the external client config
+ * - eviction is frequency-aware (W-TinyLFU as implemented by Caffeine), so popular addresses survive bursts of one-off addresses
+ * - entries are keyed by the canonical address (see AddressCanonicalizer)
+ * - concurrent lookups of the same address are coalesced into one call of the loader
+ * - unresolvable addresses are cached (negative entries with their own ttl) and short-circuited without calling the loader
+ * */
+public class GeocodeCache {
+
+    static final String MAX_SIZE_CONFIG = "geocode.cache.max.size";
+    static final String TTL_SECONDS_CONFIG = "geocode.cache.ttl.seconds";
+    static final String NEGATIVE_TTL_SECONDS_CONFIG = "geocode.cache.negative.ttl.seconds";
+    static final long DEFAULT_MAX_SIZE = 100_000L;
+    static final long DEFAULT_TTL_SECONDS = 24 * 60 * 60L;
+    static final long DEFAULT_NEGATIVE_TTL_SECONDS = 60 * 60L;
+
+    private final Cache<String, LatLng> cache;
+// canonical address -> reason
+    private final Cache<String, String> unresolvable;
+    private final LongAdder negativeHits = new LongAdder();
+    private final AddressCanonicalizer canonicalizer;
+// lookups currently running (per canonical address)
+    private final ConcurrentHashMap<String, CompletableFuture<LatLng>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+
+    public GeocodeCache(long maxSize, long ttlSeconds, long negativeTtlSeconds, AddressCanonicalizer canonicalizer) {
+        this.canonicalizer = canonicalizer;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                .recordStats()
+                .build();
+        this.unresolvable = Caffeine.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(negativeTtlSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    public static GeocodeCache fromConfig(Properties cfg, AddressCanonicalizer canonicalizer) {
+        return new GeocodeCache(
+                Long.parseLong(cfg.getProperty(MAX_SIZE_CONFIG, String.valueOf(DEFAULT_MAX_SIZE))),
+                Long.parseLong(cfg.getProperty(TTL_SECONDS_CONFIG, String.valueOf(DEFAULT_TTL_SECONDS))),
+                Long.parseLong(cfg.getProperty(NEGATIVE_TTL_SECONDS_CONFIG, String.valueOf(DEFAULT_NEGATIVE_TTL_SECONDS))),
+                canonicalizer);
+    }
+
+    /*
+     * return the cached location of the address or invoke the loader with the address and its key (at most once per key concurrently)
+     * Note: a loader returning null or throwing does not create an entry,
+     * except for UnresolvableAddressException, which creates a negative entry (and is re-thrown on subsequent calls)
+     * Note: the loader is not run inside a cache compute(), as a slow external call would block unrelated keys
+     * */
+    public LatLng get(String address, BiFunction<String, String, LatLng> loader) {
+        final String key = canonicalizer.canonicalize(address);
+        final LatLng cached = cache.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        final String reason = unresolvable.getIfPresent(key);
+        if (reason != null) {
+            negativeHits.increment();
+            throw new UnresolvableAddressException(reason);
+        }
+        final CompletableFuture<LatLng> lookup = new CompletableFuture<>();
+        final CompletableFuture<LatLng> running = inFlight.putIfAbsent(key, lookup);
+        if (running != null) {
+// piggyback on the lookup of another worker
+            coalesced.increment();
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        try {
+            final LatLng location = loader.apply(address, key);
+            if (location != null) {
+                cache.put(key, location);
+            }
+            lookup.complete(location);
+            return location;
+        } catch (UnresolvableAddressException e) {
+            unresolvable.put(key, e.getReason());
+            lookup.completeExceptionally(e);
+            throw e;
+        } catch (RuntimeException e) {
+            lookup.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, lookup);
+        }
+    }
+
+    public long hitCount() {
+        return cache.stats().hitCount();
+    }
+
+    public double hitRate() {
+        return cache.stats().hitRate();
+    }
+
+    public long missCount() {
+        return cache.stats().missCount();
+    }
+
+    public long negativeHitCount() {
+        return negativeHits.sum();
+    }
+
+    public long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    public long size() {
+        return cache.estimatedSize();
+    }
+
+}
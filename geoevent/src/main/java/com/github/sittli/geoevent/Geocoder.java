@@ -0,0 +1,32 @@
+package com.github.sittli.geoevent;
+
+import com.google.maps.model.LatLng;
+
+/*
+ * resolves an address to its location
+ * - throws UnresolvableAddressException if the backend knows that it cannot resolve the address (cached as negative entry)
+ * - throws any other RuntimeException if the call failed (not cached, the address is looked up again next time)
+ * implementations must be thread-safe (the worker threads of the lookup engine share one instance)
+ * the backends are selected via the external client config, see GeoEventApp
+ * */
+public interface Geocoder extends AutoCloseable {
+
+// comma separated list of backends, tried in order (e.g. 'gazetteer,google'): google, gazetteer, simulator
+    String BACKENDS_CONFIG = "lookup.geocoder";
+    String GOOGLE = "google";
+    String GAZETTEER = "gazetteer";
+    String SIMULATOR = "simulator";
+
+    /*
+     * address: as written in the request (sent to remote backends); key: its canonical form (see AddressCanonicalizer),
+     * computed once by the caller (GeocodeCache) for local indexes
+     * */
+    LatLng geocode(String address, String key);
+
+    String name();
+
+    @Override
+    default void close() {
+    }
+
+}
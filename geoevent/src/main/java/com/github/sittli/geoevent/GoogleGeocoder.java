@@ -0,0 +1,70 @@
+package com.github.sittli.geoevent;
+
+import com.google.maps.GeoApiContext;
+import com.google.maps.GeocodingApi;
+import com.google.maps.errors.ApiException;
+import com.google.maps.errors.InvalidRequestException;
+import com.google.maps.errors.NotFoundException;
+import com.google.maps.model.GeocodingResult;
+import com.google.maps.model.LatLng;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+
+/*
+ * GoogleMaps geocoding API (remote call, 50 - 200 ms)
+ * - every call needs a permit of the rate limiter, successes and errors are fed back to it
+ * - the address is postfixed with ',Germany'
+ * */
+public class GoogleGeocoder implements Geocoder {
+
+    private static final Logger logger = LoggerFactory.getLogger(GoogleGeocoder.class.getName());
+
+    private final GeoApiContext context;
+    private final AdaptiveRateLimiter rateLimiter;
+    private final LookupMetrics metrics;
+
+    public GoogleGeocoder(GeoApiContext context, AdaptiveRateLimiter rateLimiter, LookupMetrics metrics) {
+        this.context = context;
+        this.rateLimiter = rateLimiter;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public LatLng geocode(String address, String key) {
+        GeocodingResult[] results;
+        try {
+            rateLimiter.acquire();
+            long start = System.nanoTime();
+            results = GeocodingApi.geocode(context, address+",Germany").await();
+            long latency = System.nanoTime() - start;
+            rateLimiter.onSuccess(latency);
+            metrics.recordGeocoderLatency(latency);
+        } catch (InvalidRequestException e) {
+// the address is the problem, not the backend
+            throw new UnresolvableAddressException(UnresolvableAddressException.INVALID_REQUEST);
+        } catch (NotFoundException e) {
+            throw new UnresolvableAddressException(UnresolvableAddressException.NOT_FOUND);
+        } catch (ApiException | IOException e) {
+// e.g. OverQueryLimitException; not cached, the address is looked up again next time
+            rateLimiter.onError();
+            throw new IllegalStateException("geocoding failed for " + address, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("geocoding interrupted for " + address, e);
+        }
+        if (results.length == 0) {
+            throw new UnresolvableAddressException(UnresolvableAddressException.ZERO_RESULTS);
+        }
+        LatLng location = results[0].geometry.location;
+        logger.debug("lat: {} | lng: {}", location.lat, location.lng);
+        return location;
+    }
+
+    @Override
+    public String name() {
+        return GOOGLE;
+    }
+
+}
@@ -0,0 +1,198 @@
+package com.github.sittli.geoevent;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Key-ordered parallel processing of lookup requests
+ * - records are processed on a bounded pool of worker threads
+ * - records with the same key are chained, i.e. processed in offset order; different keys run concurrently
+ * - per partition only the contiguous prefix of completed offsets is reported as committable
+ * Note: the engine never touches the (not thread-safe) consumer; polling, committing and seeking stay with the caller
+ * */
+public class LookupEngine {
+
+    static final String WORKER_THREADS_CONFIG = "lookup.worker.threads";
+    static final String MAX_IN_FLIGHT_CONFIG = "lookup.max.in.flight";
+
+    /*
+     * processes a single record
+     * completion (successful or not) must be signalled exactly once via the given callback, possibly asynchronously
+     * */
+    interface RecordHandler {
+        void handle(ConsumerRecord<String, Object> record, Callback done);
+    }
+
+    private final RecordHandler handler;
+    private final ExecutorService workers;
+// tail of the chain of tasks per key
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> keyTails = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<TopicPartition, OffsetTracker> trackers = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final Object idle = new Object();
+
+    public LookupEngine(int threads, RecordHandler handler) {
+        this.handler = handler;
+        final AtomicInteger threadNo = new AtomicInteger();
+        this.workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "lookup-worker-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public void submit(ConsumerRecord<String, Object> record) {
+        final TopicPartition tp = new TopicPartition(record.topic(), record.partition());
+        final OffsetTracker tracker = trackers.computeIfAbsent(tp, k -> new OffsetTracker());
+        final long offset = record.offset();
+        tracker.begin(offset);
+        inFlight.incrementAndGet();
+
+// the slot is released exactly once, even if the handler throws after signalling completion
+        final AtomicBoolean done = new AtomicBoolean();
+        final Runnable task = () -> {
+            try {
+                handler.handle(record, (metadata, exception) -> {
+                    if (done.compareAndSet(false, true)) {
+                        complete(tracker, offset, exception);
+                    }
+                });
+            } catch (Throwable t) {
+// never propagated: a failed task would complete the key's chain exceptionally, i.e. skip all later tasks of the key
+                if (done.compareAndSet(false, true)) {
+                    complete(tracker, offset, t instanceof Exception ? (Exception) t : new IllegalStateException("lookup failed", t));
+                }
+            }
+        };
+        final String key = record.key();
+        if (key == null) {
+// no ordering guarantee required
+            CompletableFuture.runAsync(task, workers);
+            return;
+        }
+        final CompletableFuture<Void> next = keyTails.compute(key, (k, tail) ->
+                (tail == null ? CompletableFuture.<Void>completedFuture(null) : tail).thenRunAsync(task, workers));
+        next.whenComplete((v, e) -> keyTails.remove(key, next));
+    }
+
+    private void complete(OffsetTracker tracker, long offset, Exception exception) {
+        if (exception == null) {
+            tracker.complete(offset);
+        } else {
+// the offset stays outstanding, so it is never committed
+            failure.compareAndSet(null, exception);
+        }
+        if (inFlight.decrementAndGet() == 0) {
+            synchronized (idle) {
+                idle.notifyAll();
+            }
+        }
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public Exception failure() {
+        return failure.get();
+    }
+
+    /*
+     * block until all submitted records are completed
+     * */
+    public void awaitIdle() throws InterruptedException {
+        synchronized (idle) {
+            while (inFlight.get() > 0) {
+                idle.wait(100);
+            }
+        }
+    }
+
+    /*
+     * offsets (per partition) that advanced since the previous call
+     * */
+    public Map<TopicPartition, OffsetAndMetadata> takeCommittable() {
+        final Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+        trackers.forEach((tp, tracker) -> {
+            long next = tracker.takeCommittable();
+            if (next >= 0) {
+                offsets.put(tp, new OffsetAndMetadata(next));
+            }
+        });
+        return offsets;
+    }
+
+    /*
+     * first offset per partition that has not been completed (the position to resume from)
+     * */
+    public Map<TopicPartition, Long> resumePositions() {
+        final Map<TopicPartition, Long> positions = new HashMap<>();
+        trackers.forEach((tp, tracker) -> {
+            long next = tracker.committable();
+            if (next >= 0) {
+                positions.put(tp, next);
+            }
+        });
+        return positions;
+    }
+
+    /*
+     * drop the state of the given partitions (e.g. after they got revoked or re-positioned)
+     * requires that the engine is idle
+     * */
+    public void forget(Collection<TopicPartition> partitions) {
+        partitions.forEach(trackers::remove);
+        failure.set(null);
+    }
+
+    /*
+     * bookkeeping of the outstanding offsets of a single partition
+     * */
+    static class OffsetTracker {
+        private final TreeSet<Long> outstanding = new TreeSet<>();
+        private long highestSubmitted = -1;
+        private long lastCommitted = -1;
+
+        synchronized void begin(long offset) {
+            outstanding.add(offset);
+            highestSubmitted = offset;
+        }
+
+        synchronized void complete(long offset) {
+            outstanding.remove(offset);
+        }
+
+        // next offset to consume, i.e. all offsets below are completed; -1 if nothing was submitted yet
+        synchronized long committable() {
+            if (highestSubmitted < 0) {
+                return -1;
+            }
+            return outstanding.isEmpty() ? highestSubmitted + 1 : outstanding.first();
+        }
+
+        synchronized long takeCommittable() {
+            long next = committable();
+            if (next <= lastCommitted) {
+                return -1;
+            }
+            lastCommitted = next;
+            return next;
+        }
+    }
+
+}
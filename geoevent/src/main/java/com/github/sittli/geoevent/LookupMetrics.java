@@ -0,0 +1,93 @@
+package com.github.sittli.geoevent;
+
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.metrics.stats.Avg;
+import org.apache.kafka.common.metrics.stats.CumulativeCount;
+import org.apache.kafka.common.metrics.stats.Max;
+import org.apache.kafka.common.metrics.stats.Percentile;
+import org.apache.kafka.common.metrics.stats.Percentiles;
+import org.apache.kafka.common.metrics.stats.Rate;
+import org.apache.kafka.common.utils.Time;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+
+/*
+ * Metrics of the lookup service
+ * - own registry, exposed via JMX next to the client metrics (kafka.geo:type=geo-lookup-metrics)
+ * - geocoder-latency-avg / -max / -p50 / -p99 [ms]: calls to the external geocoder (i.e. cache misses)
+ * - lookup-rate / -total, unresolvable-rate / -total, error-rate / -total: processed lookup requests
+ * - gauges for the cache (hit ratio, size, ...), the rate limiter and the lookup engine (see GeoEventApp)
+ * Note: sensors are thread-safe, the worker threads of the lookup engine record into the same sensors
+ * */
+public class LookupMetrics implements AutoCloseable {
+
+    static final String GROUP = "geo-lookup-metrics";
+    static final String JMX_PREFIX = "kafka.geo";
+
+// upper bound of the latency histogram (larger values end up in the last bucket) and its size (~ 1000 buckets)
+    private static final double MAX_LATENCY_MS = 10_000;
+    private static final int HISTOGRAM_BYTES = 4096;
+
+    private final Metrics metrics;
+    private final Sensor geocoderLatency;
+    private final Sensor lookups;
+    private final Sensor unresolvable;
+    private final Sensor errors;
+
+    public LookupMetrics() {
+        this.metrics = new Metrics(new MetricConfig(), Collections.singletonList(new JmxReporter(JMX_PREFIX)), Time.SYSTEM);
+
+        this.geocoderLatency = metrics.sensor("geocoder-latency");
+        geocoderLatency.add(metrics.metricName("geocoder-latency-avg", GROUP, "ms per call to the geocoder"), new Avg());
+        geocoderLatency.add(metrics.metricName("geocoder-latency-max", GROUP, "ms per call to the geocoder"), new Max());
+        geocoderLatency.add(new Percentiles(HISTOGRAM_BYTES, MAX_LATENCY_MS, Percentiles.BucketSizing.LINEAR,
+                new Percentile(metrics.metricName("geocoder-latency-p50", GROUP, "median ms per call to the geocoder"), 50),
+                new Percentile(metrics.metricName("geocoder-latency-p99", GROUP, "99th percentile ms per call to the geocoder"), 99)));
+
+        this.lookups = rateTotalSensor("lookup", "processed lookup requests");
+        this.unresolvable = rateTotalSensor("unresolvable", "lookup requests answered as unresolvable");
+        this.errors = rateTotalSensor("error", "lookup requests skipped after an error");
+    }
+
+    private Sensor rateTotalSensor(String name, String description) {
+        final Sensor sensor = metrics.sensor(name);
+        sensor.add(metrics.metricName(name + "-rate", GROUP, description + " per second"), new Rate());
+        sensor.add(metrics.metricName(name + "-total", GROUP, description), new CumulativeCount());
+        return sensor;
+    }
+
+    /*
+     * registers a value that is read when the metric is reported (e.g. a counter of the cache)
+     * */
+    public void gauge(String name, String description, DoubleSupplier value) {
+        metrics.addMetric(metrics.metricName(name, GROUP, description), (Measurable) (config, now) -> value.getAsDouble());
+    }
+
+    public void recordGeocoderLatency(long nanos) {
+        geocoderLatency.record((double) nanos / TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    public void recordLookup() {
+        lookups.record();
+    }
+
+    public void recordUnresolvable() {
+        unresolvable.record();
+    }
+
+    public void recordError() {
+        errors.record();
+    }
+
+    @Override
+    public void close() {
+        metrics.close();
+    }
+
+}
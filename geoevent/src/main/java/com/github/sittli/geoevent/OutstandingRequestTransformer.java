@@ -0,0 +1,170 @@
+package com.github.sittli.geoevent;
+
+import com.github.sittli.geodata.EventEnriched;
+import com.github.sittli.geodata.EventFailed;
+import com.github.sittli.geodata.EventRequest;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.kstream.ValueTransformerWithKey;
+import org.apache.kafka.streams.kstream.ValueTransformerWithKeySupplier;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.StoreBuilder;
+import org.apache.kafka.streams.state.Stores;
+import org.apache.kafka.streams.state.TimestampedKeyValueStore;
+import org.apache.kafka.streams.state.ValueAndTimestamp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * De-duplication of lookup requests (per address)
+ * - only the first pending event of an address issues a lookup request; the request is kept in the "outstanding requests" store
+ * - further events for the same address are suppressed until the response arrives (see Completion) or the request times out
+ * - a wall-clock punctuator re-issues requests that timed out, at most batchSize entries per punctuation (continuing where
+ *   the previous one stopped, like StoreSweeper)
+ * - a request that timed out after maxReissues re-issues is given up: it is removed and an EventFailed (reason LOOKUP_TIMEOUT)
+ *   is forwarded instead of the request, which must be routed to the unresolvable topic (releases the pending events as failed)
+ * - issued, suppressed, re-issued and given up requests are recorded in sensors (scope 'geo-lookup', entity = store name)
+ * Note: the outstanding store must be co-partitioned with the response topic (both keyed by address)
+ * Note: the re-issues are counted in memory, i.e. start over when the task is re-initialized (e.g. after a rebalance)
+ * */
+public class OutstandingRequestTransformer implements Transformer<String, EventEnriched, KeyValue<String, SpecificRecord>> {
+
+    static final String OUTSTANDING_STORE = "geo-outstanding-store";
+    static final String LOOKUP_TIMEOUT_MS_CONFIG = "geo.lookup.timeout.ms";
+    static final String MAX_REISSUES_CONFIG = "geo.lookup.max.reissues";
+
+    private final long timeoutMs;
+    private final int maxReissues;
+    private final int batchSize;
+    private ProcessorContext context;
+    private TimestampedKeyValueStore<String, EventRequest> store;
+    private Sensor issued;
+    private Sensor suppressed;
+    private Sensor reissued;
+    private Sensor timedOut;
+    private String cursor = null;
+// re-issues per address (only addresses re-issued at least once), pruned after every full pass
+    private final Map<String, Integer> reissues = new HashMap<>();
+
+    public OutstandingRequestTransformer(long timeoutMs, int maxReissues, int batchSize) {
+        this.timeoutMs = timeoutMs;
+        this.maxReissues = maxReissues;
+        this.batchSize = batchSize;
+    }
+
+    public static StoreBuilder<TimestampedKeyValueStore<String, EventRequest>> storeBuilder(Serde<EventRequest> requestSerde) {
+        return Stores.timestampedKeyValueStoreBuilder(
+                Stores.persistentTimestampedKeyValueStore(OUTSTANDING_STORE), Serdes.String(), requestSerde);
+    }
+
+    public static <V> ValueTransformerWithKeySupplier<String, V, V> completion() {
+        return Completion::new;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void init(ProcessorContext context) {
+        this.context = context;
+        this.store = (TimestampedKeyValueStore<String, EventRequest>) context.getStateStore(OUTSTANDING_STORE);
+        this.issued = context.metrics().addRateTotalSensor("geo-lookup", OUTSTANDING_STORE, "issued", Sensor.RecordingLevel.INFO);
+        this.suppressed = context.metrics().addRateTotalSensor("geo-lookup", OUTSTANDING_STORE, "suppressed", Sensor.RecordingLevel.INFO);
+        this.reissued = context.metrics().addRateTotalSensor("geo-lookup", OUTSTANDING_STORE, "reissued", Sensor.RecordingLevel.INFO);
+        this.timedOut = context.metrics().addRateTotalSensor("geo-lookup", OUTSTANDING_STORE, "timed-out", Sensor.RecordingLevel.INFO);
+        context.schedule(Duration.ofMillis(Math.max(1000, timeoutMs / 2)), PunctuationType.WALL_CLOCK_TIME, this::reissue);
+    }
+
+    @Override
+    public KeyValue<String, SpecificRecord> transform(String key, EventEnriched event) {
+        final long now = System.currentTimeMillis();
+        final ValueAndTimestamp<EventRequest> outstanding = store.get(key);
+        if (outstanding != null && now - outstanding.timestamp() < timeoutMs) {
+// a lookup for this address is already on its way
+            suppressed.record();
+            return null;
+        }
+        final EventRequest request = new EventRequest(event.getAddress());
+        store.put(key, ValueAndTimestamp.make(request, now));
+        reissues.remove(key);
+        issued.record();
+        return KeyValue.pair(key, request);
+    }
+
+    private void reissue(long now) {
+        final List<KeyValue<String, EventRequest>> expired = new ArrayList<>();
+        String last = null;
+        int scanned = 0;
+        try (KeyValueIterator<String, ValueAndTimestamp<EventRequest>> it =
+                     cursor == null ? store.all() : store.range(cursor, StoreSweeper.MAX_KEY)) {
+            while (scanned < batchSize && it.hasNext()) {
+                KeyValue<String, ValueAndTimestamp<EventRequest>> entry = it.next();
+                if (entry.key.equals(cursor)) {
+// range() is inclusive; this entry was checked by the previous punctuation
+                    continue;
+                }
+                scanned++;
+                last = entry.key;
+                if (now - entry.value.timestamp() >= timeoutMs) {
+                    expired.add(KeyValue.pair(entry.key, entry.value.value()));
+                }
+            }
+// continue with the next batch or start over
+            cursor = it.hasNext() ? last : null;
+        }
+        for (KeyValue<String, EventRequest> request : expired) {
+            if (reissues.merge(request.key, 1, Integer::sum) > maxReissues) {
+                store.delete(request.key);
+                reissues.remove(request.key);
+                context.forward(request.key, new EventFailed(request.value.getAddress(), null,
+                        UnresolvableAddressException.LOOKUP_TIMEOUT, now));
+                timedOut.record();
+            } else {
+                store.put(request.key, ValueAndTimestamp.make(request.value, now));
+                context.forward(request.key, request.value);
+                reissued.record();
+            }
+        }
+        if (cursor == null) {
+// completed (or newly issued) requests are not re-issued any more
+            reissues.keySet().removeIf(key -> store.get(key) == null);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /*
+     * removes the outstanding request, once its response (or failure) arrived; passes the value unchanged
+     * */
+    static class Completion<V> implements ValueTransformerWithKey<String, V, V> {
+
+        private TimestampedKeyValueStore<String, EventRequest> store;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void init(ProcessorContext context) {
+            this.store = (TimestampedKeyValueStore<String, EventRequest>) context.getStateStore(OUTSTANDING_STORE);
+        }
+
+        @Override
+        public V transform(String key, V value) {
+            store.delete(key);
+            return value;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+package com.github.sittli.geoevent;
+
+import com.github.sittli.geodata.EventEnriched;
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.common.serialization.Serde;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.kstream.TransformerSupplier;
+import org.apache.kafka.streams.kstream.ValueJoiner;
+import org.apache.kafka.streams.kstream.ValueTransformerWithKey;
+import org.apache.kafka.streams.kstream.ValueTransformerWithKeySupplier;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.StoreBuilder;
+import org.apache.kafka.streams.state.Stores;
+import org.apache.kafka.streams.state.TimestampedKeyValueStore;
+import org.apache.kafka.streams.state.ValueAndTimestamp;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Buffer of all pending events per address (instead of only the last one)
+ * - every event is a separate store entry with the composite key <address> \0 <offset>, so an append is a single put
+ *   (the events of an address are never re-serialized as a whole)
+ * - the events of an address are adjacent and in arrival order, a response releases all of them with one range scan
+ * - at most maxEvents are buffered per address; the oldest event is dropped when the cap is reached (metered, see
+ *   GeoStreamMetrics, and logged at most once per minute)
+ * - a metered release records the end-to-end latency of every released event (from its buffered event timestamp)
+ * Note: the store must be co-partitioned with the response topics (all keyed by address)
+ * */
+public class PendingEventBuffer {
+
+    static final String PENDING_STORE = "geo-pending-store";
+    static final String MAX_EVENTS_CONFIG = "geo.pending.max.events";
+
+    private static final Logger logger = LoggerFactory.getLogger(PendingEventBuffer.class.getName());
+
+    private static final char SEPARATOR = '\u0000';
+    private static final long DROP_WARN_INTERVAL_MS = 60_000;
+
+    private PendingEventBuffer() {
+    }
+
+    public static StoreBuilder<TimestampedKeyValueStore<String, EventEnriched>> storeBuilder(Serde<EventEnriched> eventSerde) {
+        return Stores.timestampedKeyValueStoreBuilder(
+                Stores.persistentTimestampedKeyValueStore(PENDING_STORE), Serdes.String(), eventSerde);
+    }
+
+    /*
+     * appends the event to the buffer of its address; passes the value unchanged
+     * */
+    public static ValueTransformerWithKeySupplier<String, EventEnriched, EventEnriched> append(int maxEvents) {
+        return () -> new Append(maxEvents);
+    }
+
+    /*
+     * releases (and removes) all events buffered for the address of the incoming record, joined with the record
+     * */
+    public static <V, VR> TransformerSupplier<String, V, Iterable<KeyValue<String, VR>>> release(ValueJoiner<V, EventEnriched, VR> joiner) {
+        return () -> new Release<>(joiner, false);
+    }
+
+    /*
+     * like release, but records the end-to-end latency (GeoStreamMetrics) of the released events
+     * */
+    public static <V, VR> TransformerSupplier<String, V, Iterable<KeyValue<String, VR>>> meteredRelease(ValueJoiner<V, EventEnriched, VR> joiner) {
+        return () -> new Release<>(joiner, true);
+    }
+
+    // all keys of an address are in [from, to)
+    static String from(String address) {
+        return address + SEPARATOR;
+    }
+
+    static String to(String address) {
+        return address + (char) (SEPARATOR + 1);
+    }
+
+    static String entryKey(String address, long offset) {
+        return String.format("%s%c%019d", address, SEPARATOR, offset);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static TimestampedKeyValueStore<String, EventEnriched> store(ProcessorContext context) {
+        return (TimestampedKeyValueStore<String, EventEnriched>) context.getStateStore(PENDING_STORE);
+    }
+
+    static class Append implements ValueTransformerWithKey<String, EventEnriched, EventEnriched> {
+
+        private final int maxEvents;
+        private ProcessorContext context;
+        private TimestampedKeyValueStore<String, EventEnriched> store;
+        private Sensor dropped;
+        private long droppedSinceWarn = 0;
+        private long lastWarnMs = 0;
+
+        Append(int maxEvents) {
+            this.maxEvents = maxEvents;
+        }
+
+        @Override
+        public void init(ProcessorContext context) {
+            this.context = context;
+            this.store = store(context);
+            this.dropped = GeoStreamMetrics.pendingDroppedSensor(context);
+        }
+
+        @Override
+        public EventEnriched transform(String address, EventEnriched event) {
+// enforce the cap (only the keys up to the cap are read)
+            final List<String> buffered = new ArrayList<>();
+            try (KeyValueIterator<String, ValueAndTimestamp<EventEnriched>> it = store.range(from(address), to(address))) {
+                while (buffered.size() < maxEvents && it.hasNext()) {
+                    buffered.add(it.next().key);
+                }
+            }
+            for (int i = 0; i <= buffered.size() - maxEvents; i++) {
+                store.delete(buffered.get(i));
+                drop(address);
+            }
+            store.put(entryKey(address, context.offset()), ValueAndTimestamp.make(event, context.timestamp()));
+            return event;
+        }
+
+        private void drop(String address) {
+            final long now = System.currentTimeMillis();
+            dropped.record(1, now);
+            droppedSinceWarn++;
+            if (now - lastWarnMs >= DROP_WARN_INTERVAL_MS) {
+                logger.warn("dropped " + droppedSinceWarn + " pending event(s) since the last warning, buffer full (" + MAX_EVENTS_CONFIG
+                        + "=" + maxEvents + "), e.g. of address " + address);
+                droppedSinceWarn = 0;
+                lastWarnMs = now;
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    static class Release<V, VR> implements Transformer<String, V, Iterable<KeyValue<String, VR>>> {
+
+        private final ValueJoiner<V, EventEnriched, VR> joiner;
+        private final boolean metered;
+        private TimestampedKeyValueStore<String, EventEnriched> store;
+        private Sensor latency;
+
+        Release(ValueJoiner<V, EventEnriched, VR> joiner, boolean metered) {
+            this.joiner = joiner;
+            this.metered = metered;
+        }
+
+        @Override
+        public void init(ProcessorContext context) {
+            this.store = store(context);
+            if (metered) {
+                this.latency = GeoStreamMetrics.latencySensor(context);
+            }
+        }
+
+        @Override
+        public Iterable<KeyValue<String, VR>> transform(String address, V value) {
+            final List<KeyValue<String, VR>> released = new ArrayList<>();
+            final List<String> keys = new ArrayList<>();
+            final long now = System.currentTimeMillis();
+            try (KeyValueIterator<String, ValueAndTimestamp<EventEnriched>> it = store.range(from(address), to(address))) {
+                while (it.hasNext()) {
+                    final KeyValue<String, ValueAndTimestamp<EventEnriched>> entry = it.next();
+                    keys.add(entry.key);
+                    released.add(KeyValue.pair(address, joiner.apply(value, entry.value.value())));
+                    if (metered) {
+                        latency.record(now - entry.value.timestamp(), now);
+                    }
+                }
+            }
+            keys.forEach(store::delete);
+            return released;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.github.sittli.geoevent;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.streams.processor.StateRestoreListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * reports the restoration of the state stores (global and task stores) from their topics
+ * - start: offset range to replay (after a snapshot restore only the tail after the snapshot's offsets, see StoreSnapshots)
+ * - progress: at most every PROGRESS_INTERVAL_MS per store partition (restored records, percentage, rate)
+ * - end: total records and duration
+ * Note: called by the global and the stream threads, i.e. concurrently for different partitions
+ * */
+public class RestoreProgressListener implements StateRestoreListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(RestoreProgressListener.class.getName());
+
+    private static final long PROGRESS_INTERVAL_MS = 5_000;
+
+    private final Map<String, Progress> restores = new ConcurrentHashMap<>();
+
+    private static final class Progress {
+        final long startMs = System.currentTimeMillis();
+        final long startOffset;
+        final long endOffset;
+        long restored;
+        long lastReportMs = startMs;
+
+        Progress(long startOffset, long endOffset) {
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+        }
+    }
+
+    @Override
+    public void onRestoreStart(TopicPartition topicPartition, String storeName, long startingOffset, long endingOffset) {
+        restores.put(key(topicPartition, storeName), new Progress(startingOffset, endingOffset));
+        logger.info("restoring " + storeName + " from " + topicPartition + ": offsets " + startingOffset + " - " + endingOffset
+                + " (" + Math.max(0, endingOffset - startingOffset) + " records)");
+    }
+
+    @Override
+    public void onBatchRestored(TopicPartition topicPartition, String storeName, long batchEndOffset, long numRestored) {
+        final Progress progress = restores.get(key(topicPartition, storeName));
+        if (progress == null) {
+            return;
+        }
+        progress.restored += numRestored;
+        final long now = System.currentTimeMillis();
+        if (now - progress.lastReportMs >= PROGRESS_INTERVAL_MS) {
+            progress.lastReportMs = now;
+            final long total = Math.max(1, progress.endOffset - progress.startOffset);
+            logger.info("restoring " + storeName + " from " + topicPartition + ": " + progress.restored + " records ("
+                    + Math.min(100, 100 * (batchEndOffset - progress.startOffset) / total) + "%, "
+                    + rate(progress.restored, now - progress.startMs) + " records/s)");
+        }
+    }
+
+    @Override
+    public void onRestoreEnd(TopicPartition topicPartition, String storeName, long totalRestored) {
+        final Progress progress = restores.remove(key(topicPartition, storeName));
+        final long durationMs = progress == null ? 0 : System.currentTimeMillis() - progress.startMs;
+        logger.info("restored " + storeName + " from " + topicPartition + ": " + totalRestored + " records in " + durationMs + " ms ("
+                + rate(totalRestored, durationMs) + " records/s)");
+    }
+
+    private static String key(TopicPartition topicPartition, String storeName) {
+        return storeName + "@" + topicPartition;
+    }
+
+    private static long rate(long records, long durationMs) {
+        return durationMs <= 0 ? records : records * 1000 / durationMs;
+    }
+
+}
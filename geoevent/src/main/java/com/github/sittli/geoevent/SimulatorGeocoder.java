@@ -0,0 +1,29 @@
+package com.github.sittli.geoevent;
+
+import com.google.maps.model.LatLng;
+
+/*
+ * answers every address without any call (load tests, benchmarks)
+ * - the location is derived from the hash of the canonical address, i.e. stable per address and somewhere in Germany
+ * */
+public class SimulatorGeocoder implements Geocoder {
+
+    private static final double MIN_LAT = 47.3;
+    private static final double MAX_LAT = 55.0;
+    private static final double MIN_LNG = 5.9;
+    private static final double MAX_LNG = 15.0;
+
+    @Override
+    public LatLng geocode(String address, String key) {
+        final int hash = key.hashCode();
+// upper / lower 16 bits as fractions of the bounding box
+        return new LatLng(MIN_LAT + (MAX_LAT - MIN_LAT) * (hash >>> 16) / 0xFFFF,
+                MIN_LNG + (MAX_LNG - MIN_LNG) * (hash & 0xFFFF) / 0xFFFF);
+    }
+
+    @Override
+    public String name() {
+        return SIMULATOR;
+    }
+
+}
@@ -0,0 +1,388 @@
+package com.github.sittli.geoevent;
+
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.utils.Utils;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.state.RocksDBConfigSetter;
+import org.apache.kafka.streams.state.internals.OffsetCheckpoint;
+import org.rocksdb.BlockBasedTableConfig;
+import org.rocksdb.ColumnFamilyDescriptor;
+import org.rocksdb.ColumnFamilyHandle;
+import org.rocksdb.DBOptions;
+import org.rocksdb.EnvOptions;
+import org.rocksdb.IngestExternalFileOptions;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.SstFileWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ * Snapshots of the (RocksDB) state stores, so that a new instance / a wiped state dir does not restore from offset 0
+ * - snapshot: the store's checkpointed offsets are read first, then the store is read via a read-only RocksDB instance
+ *   and written as SST file (RocksDB's bulk-loadable format) next to a properties file with the offsets
+ *   (as the store is at least at the checkpointed offsets, replaying from there is idempotent for key-value stores)
+ * - restore (before the streams instance is started): every store snapshot without a local store directory is ingested
+ *   into a new RocksDB instance at the store's location and its offsets are written to the .checkpoint file,
+ *   i.e. Kafka Streams only replays the topic tail after the snapshot's offsets
+ * - layout: <geo.snapshot.dir>/<application.id>/<'global' or task id>/<store>/<timestamp>-<instance>.sst|.properties,
+ *   geo.snapshot.dir may be a local or a shared (mounted) directory, i.e. written by several instances (e.g. all of them
+ *   snapshot the global store); the instance id is a random UUID kept in the state directory (stable across restarts)
+ * - every instance keeps its latest geo.snapshot.retained snapshots; the snapshots of other instances are only removed once
+ *   they are older than geo.snapshot.retained + 1 intervals (e.g. of a replaced instance), i.e. all instances must use
+ *   the same interval
+ * - snapshots are taken every geo.snapshot.interval.ms and once more after the streams instance is closed
+ * Note: relies on the state directory layout of Kafka Streams 2.5 (rocksdb/<store>, .checkpoint, column family of timestamped stores)
+ * Note: task stores are restored for all snapshotted tasks; directories of tasks that are not assigned to this instance
+ *   are removed by the state directory cleaner (state.cleanup.delay.ms)
+ * */
+public class StoreSnapshots implements AutoCloseable {
+
+    private static final Logger logger = LoggerFactory.getLogger(StoreSnapshots.class.getName());
+
+    static final String DIR_CONFIG = "geo.snapshot.dir";
+    static final String INTERVAL_MS_CONFIG = "geo.snapshot.interval.ms";
+    static final String RETAINED_CONFIG = "geo.snapshot.retained";
+
+// column family of Kafka Streams' timestamped key-value stores
+    static final String TIMESTAMPED_COLUMN_FAMILY = "keyValueWithTimestamp";
+    private static final String CHECKPOINT_FILE = ".checkpoint";
+    private static final String COLUMN_FAMILY = "column.family";
+    private static final String ENTRIES = "entries";
+    private static final String OFFSET_PREFIX = "offset.";
+    private static final String INSTANCE_FILE = ".geo-snapshot-instance";
+// <timestamp>-<instance> (or just <timestamp>, written by earlier versions)
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("(\\d+)(?:-(.+))?");
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    private final File stateDir;
+    private final File snapshotDir;
+// store name -> topic the store is restored from (changelog or source topic)
+    private final Map<String, String> stores;
+    private final long intervalMs;
+    private final int retained;
+// the streams config (passed to the rocksdb.config.setter)
+    private final Map<String, Object> configs;
+    private final ScheduledExecutorService scheduler;
+    private volatile String instanceId;
+
+    public StoreSnapshots(File stateDir, File snapshotDir, Map<String, String> stores, long intervalMs, int retained, Map<String, Object> configs) {
+        this.stateDir = stateDir;
+        this.snapshotDir = snapshotDir;
+        this.stores = new HashMap<>(stores);
+        this.intervalMs = intervalMs;
+        this.retained = retained;
+        this.configs = new HashMap<>(configs);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "geo-store-snapshots");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /*
+     * null, if geo.snapshot.dir is not set (snapshots disabled)
+     * */
+    public static StoreSnapshots fromConfig(Properties cfg, Map<String, String> stores) {
+        final String dir = cfg.getProperty(DIR_CONFIG);
+        if (dir == null || dir.isEmpty()) {
+            return null;
+        }
+        final String applicationId = cfg.getProperty(StreamsConfig.APPLICATION_ID_CONFIG);
+        final Map<String, Object> configs = new HashMap<>();
+        cfg.forEach((key, value) -> configs.put(key.toString(), value));
+        final String stateDir = cfg.getProperty(StreamsConfig.STATE_DIR_CONFIG,
+                System.getProperty("java.io.tmpdir") + File.separator + "kafka-streams");
+        return new StoreSnapshots(new File(stateDir, applicationId), new File(dir, applicationId), stores,
+                Long.parseLong(cfg.getProperty(INTERVAL_MS_CONFIG, "600000")),
+                Integer.parseInt(cfg.getProperty(RETAINED_CONFIG, "2")), configs);
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::snapshot, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+// a running snapshot completes (or fails) before the final one is taken
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /*
+     * snapshot all stores found in the state directory (global and task directories)
+     * */
+    public void snapshot() {
+        final File[] dirs = stateDir.listFiles(File::isDirectory);
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            for (Map.Entry<String, String> store : stores.entrySet()) {
+                if (new File(new File(dir, "rocksdb"), store.getKey()).isDirectory()) {
+                    try {
+                        snapshot(dir, store.getKey(), store.getValue());
+                    } catch (IOException | RocksDBException e) {
+// e.g. a file compacted away while reading; the next interval tries again
+                        logger.warn("snapshot of " + dir.getName() + "/" + store.getKey() + " failed", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private void snapshot(File dir, String store, String topic) throws IOException, RocksDBException {
+// the offsets first: the store content read afterwards is at least as recent
+        final Map<TopicPartition, Long> offsets = new HashMap<>();
+        new OffsetCheckpoint(new File(dir, CHECKPOINT_FILE)).read().forEach((tp, offset) -> {
+            if (tp.topic().equals(topic)) {
+                offsets.put(tp, offset);
+            }
+        });
+        if (offsets.isEmpty()) {
+// not checkpointed yet
+            return;
+        }
+        final File target = new File(new File(snapshotDir, dir.getName()), store);
+        Files.createDirectories(target.toPath());
+        final String instance = instanceId();
+        final String name = System.currentTimeMillis() + "-" + instance;
+        final File sst = new File(target, name + ".sst");
+        final String storePath = new File(new File(dir, "rocksdb"), store).getAbsolutePath();
+
+        final List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+        final List<ColumnFamilyHandle> handles = new ArrayList<>();
+        try (Options listOptions = new Options()) {
+            for (byte[] columnFamily : RocksDB.listColumnFamilies(listOptions, storePath)) {
+                descriptors.add(new ColumnFamilyDescriptor(columnFamily));
+            }
+        }
+        long entries = 0;
+        String columnFamily = new String(RocksDB.DEFAULT_COLUMN_FAMILY, StandardCharsets.UTF_8);
+        try (DBOptions dbOptions = new DBOptions();
+             RocksDB db = RocksDB.openReadOnly(dbOptions, storePath, descriptors, handles)) {
+            ColumnFamilyHandle handle = handles.get(0);
+            for (int i = 0; i < descriptors.size(); i++) {
+                if (TIMESTAMPED_COLUMN_FAMILY.equals(new String(descriptors.get(i).getName(), StandardCharsets.UTF_8))) {
+                    handle = handles.get(i);
+                    columnFamily = TIMESTAMPED_COLUMN_FAMILY;
+                }
+            }
+            final RocksDBConfigSetter configSetter = configSetter();
+            try (EnvOptions envOptions = new EnvOptions();
+                 Options options = new Options().setTableFormatConfig(new BlockBasedTableConfig())) {
+// the ingested file keeps the table options (bloom filter) and compression of the store
+                if (configSetter != null) {
+                    configSetter.setConfig(store, options, configs);
+                }
+                try (SstFileWriter writer = new SstFileWriter(envOptions, options);
+                     RocksIterator iterator = db.newIterator(handle)) {
+                    for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+                        if (entries == 0) {
+                            writer.open(sst.getAbsolutePath());
+                        }
+                        writer.put(iterator.key(), iterator.value());
+                        entries++;
+                    }
+// an sst file cannot be empty (an empty store is described by the properties only)
+                    if (entries > 0) {
+                        writer.finish();
+                    }
+                } finally {
+                    if (configSetter != null) {
+                        configSetter.close(store, options);
+                    }
+                }
+            }
+        } finally {
+            handles.forEach(ColumnFamilyHandle::close);
+        }
+
+        final Properties meta = new Properties();
+        meta.setProperty(COLUMN_FAMILY, columnFamily);
+        meta.setProperty(ENTRIES, String.valueOf(entries));
+        offsets.forEach((tp, offset) -> meta.setProperty(OFFSET_PREFIX + tp.topic() + "." + tp.partition(), String.valueOf(offset)));
+// the properties file completes the snapshot (written last, renamed atomically)
+        final File tmp = new File(target, name + ".properties.tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            meta.store(out, "snapshot of " + dir.getName() + "/" + store);
+        }
+        Files.move(tmp.toPath(), new File(target, name + ".properties").toPath(), StandardCopyOption.ATOMIC_MOVE);
+        logger.info("snapshot of " + dir.getName() + "/" + store + ": " + entries + " entries at " + offsets);
+        prune(target, instance);
+    }
+
+    // the id of this instance in the snapshot names (created with the first snapshot)
+    private String instanceId() throws IOException {
+        if (instanceId == null) {
+            final File file = new File(stateDir, INSTANCE_FILE);
+            if (file.exists()) {
+                instanceId = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim();
+            } else {
+                final String id = UUID.randomUUID().toString();
+                Files.createDirectories(stateDir.toPath());
+                Files.write(file.toPath(), id.getBytes(StandardCharsets.UTF_8));
+                instanceId = id;
+            }
+        }
+        return instanceId;
+    }
+
+    // the rocksdb.config.setter of the streams instance (if any)
+    private RocksDBConfigSetter configSetter() {
+        final Object setter = configs.get(StreamsConfig.ROCKSDB_CONFIG_SETTER_CLASS_CONFIG);
+        if (setter == null) {
+            return null;
+        }
+        try {
+            return setter instanceof Class ? Utils.newInstance(((Class<?>) setter).asSubclass(RocksDBConfigSetter.class))
+                    : Utils.newInstance(setter.toString(), RocksDBConfigSetter.class);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException("rocksdb config setter " + setter + " not found", e);
+        }
+    }
+
+    // keep the latest 'retained' snapshots of this instance, remove the outdated snapshots of other instances
+    private void prune(File target, String instance) {
+        final long outdated = System.currentTimeMillis() - (retained + 1) * intervalMs;
+        final List<Matcher> names = snapshots(target);
+        int own = 0;
+        for (int i = names.size() - 1; i >= 0; i--) {
+            final Matcher name = names.get(i);
+            if (instance.equals(name.group(2)) ? ++own > retained : Long.parseLong(name.group(1)) < outdated) {
+                new File(target, name.group() + ".properties").delete();
+                new File(target, name.group() + ".sst").delete();
+            }
+        }
+    }
+
+    // completed snapshots (names), oldest first; other files are ignored
+    private static List<Matcher> snapshots(File target) {
+        final List<Matcher> names = new ArrayList<>();
+        final File[] files = target.listFiles((d, n) -> n.endsWith(".properties"));
+        if (files != null) {
+            for (File file : files) {
+                final Matcher name = SNAPSHOT_NAME.matcher(file.getName().substring(0, file.getName().length() - ".properties".length()));
+                if (name.matches()) {
+                    names.add(name);
+                }
+            }
+        }
+        names.sort((a, b) -> Long.compare(Long.parseLong(a.group(1)), Long.parseLong(b.group(1))));
+        return names;
+    }
+
+    /*
+     * load the latest snapshot of every store that has no local store directory (call before starting the streams instance)
+     * */
+    public void restore() {
+        final File[] dirs = snapshotDir.listFiles(File::isDirectory);
+        if (dirs == null) {
+            return;
+        }
+        for (File dir : dirs) {
+            for (String store : stores.keySet()) {
+                final File target = new File(dir, store);
+                final List<Matcher> names = snapshots(target);
+                final File storeDir = new File(new File(new File(stateDir, dir.getName()), "rocksdb"), store);
+                if (names.isEmpty() || storeDir.exists()) {
+                    continue;
+                }
+// the latest snapshot of any instance
+                final String name = names.get(names.size() - 1).group();
+                try {
+                    restore(target, name, storeDir);
+                } catch (IOException | RocksDBException e) {
+// restored from the topic instead
+                    logger.warn("restoring " + dir.getName() + "/" + store + " from snapshot " + name + " failed", e);
+                    deleteRecursively(storeDir);
+                }
+            }
+        }
+    }
+
+    private void restore(File target, String name, File storeDir) throws IOException, RocksDBException {
+        final long start = System.currentTimeMillis();
+        final Properties meta = new Properties();
+        try (InputStream in = new FileInputStream(new File(target, name + ".properties"))) {
+            meta.load(in);
+        }
+        Files.createDirectories(storeDir.toPath());
+        final long entries = Long.parseLong(meta.getProperty(ENTRIES));
+        final String columnFamily = meta.getProperty(COLUMN_FAMILY);
+        final List<ColumnFamilyDescriptor> descriptors = new ArrayList<>();
+        descriptors.add(new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY));
+        if (TIMESTAMPED_COLUMN_FAMILY.equals(columnFamily)) {
+            descriptors.add(new ColumnFamilyDescriptor(columnFamily.getBytes(StandardCharsets.UTF_8)));
+        }
+        final List<ColumnFamilyHandle> handles = new ArrayList<>();
+        try (DBOptions dbOptions = new DBOptions().setCreateIfMissing(true).setCreateMissingColumnFamilies(true);
+             RocksDB db = RocksDB.open(dbOptions, storeDir.getAbsolutePath(), descriptors, handles);
+             IngestExternalFileOptions ingestOptions = new IngestExternalFileOptions()) {
+            if (entries > 0) {
+// copies the file (the snapshot stays untouched)
+                db.ingestExternalFile(handles.get(handles.size() - 1),
+                        Arrays.asList(new File(target, name + ".sst").getAbsolutePath()), ingestOptions);
+            }
+        } finally {
+            handles.forEach(ColumnFamilyHandle::close);
+        }
+
+// merge the snapshot's offsets into the .checkpoint of the global / task directory
+        final OffsetCheckpoint checkpoint = new OffsetCheckpoint(new File(storeDir.getParentFile().getParentFile(), CHECKPOINT_FILE));
+        final Map<TopicPartition, Long> offsets = new HashMap<>(checkpoint.read());
+        for (String key : meta.stringPropertyNames()) {
+            if (key.startsWith(OFFSET_PREFIX)) {
+                final String topicPartition = key.substring(OFFSET_PREFIX.length());
+                final int dot = topicPartition.lastIndexOf('.');
+                offsets.put(new TopicPartition(topicPartition.substring(0, dot), Integer.parseInt(topicPartition.substring(dot + 1))),
+                        Long.parseLong(meta.getProperty(key)));
+            }
+        }
+        checkpoint.write(offsets);
+        logger.info("restored " + storeDir.getParentFile().getParentFile().getName() + "/" + storeDir.getName()
+                + " from snapshot " + name + ": " + entries + " entries in " + (System.currentTimeMillis() - start) + " ms, replaying from " + offsets);
+    }
+
+    private static void deleteRecursively(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+}
@@ -0,0 +1,136 @@
+package com.github.sittli.geoevent;
+
+import org.apache.kafka.common.metrics.Sensor;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.kstream.Transformer;
+import org.apache.kafka.streams.kstream.TransformerSupplier;
+import org.apache.kafka.streams.processor.ProcessorContext;
+import org.apache.kafka.streams.processor.PunctuationType;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.KeyValueStore;
+import org.apache.kafka.streams.state.ValueAndTimestamp;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * TTL based eviction ("aging") of a table
+ * - a wall-clock punctuator scans the table's store, at most batchSize entries per punctuation (continuing where the previous one stopped)
+ * - entries older than the ttl (record timestamp of the last update) are evicted by forwarding a tombstone,
+ *   which must be routed to the topic the table is built from (the store itself is never written here)
+ * - stores that are not built from a topic (e.g. the pending buffer) are swept in place (see inPlace)
+ * - evictions are recorded in the sensor 'evicted' (scope 'geo-sweeper', entity = store name)
+ * - the (approx.) number of entries of the task's store partition is recorded per punctuation, see GeoStreamMetrics
+ * Note: the records of the stream the sweeper is attached to are swallowed
+ * Note: the batches are key ranges, not time buckets (the stores have no time index and the geo data store is a table
+ *   of its topic, i.e. cannot carry one); a full pass reads every entry once and takes entries / batchSize punctuations,
+ *   i.e. an entry may outlive its ttl by up to (entries / batchSize) * interval: batchSize should be >= entries * interval / ttl
+ * */
+public class StoreSweeper<VIn, V> implements Transformer<String, VIn, KeyValue<String, V>> {
+
+    static final String INTERVAL_MS_CONFIG = "geo.sweep.interval.ms";
+    static final String BATCH_SIZE_CONFIG = "geo.sweep.batch.size";
+    static final String PENDING_TTL_MS_CONFIG = "geo.pending.ttl.ms";
+    static final String STORE_TTL_MS_CONFIG = "geo.store.ttl.ms";
+
+// upper bound for range scans (sorts after all keys, unless they contain supplementary characters)
+    static final String MAX_KEY = "\uffff";
+
+    private final String storeName;
+    private final long ttlMs;
+    private final long intervalMs;
+    private final int batchSize;
+    private final boolean firstTaskOnly;
+    private final boolean inPlace;
+
+    private ProcessorContext context;
+    private KeyValueStore<String, ValueAndTimestamp<V>> store;
+    private Sensor evicted;
+    private Sensor entries;
+    private String cursor = null;
+
+    /*
+     * firstTaskOnly: sweep only in the task of partition 0 (for global stores, which are held by every task)
+     * */
+    public StoreSweeper(String storeName, long ttlMs, long intervalMs, int batchSize, boolean firstTaskOnly) {
+        this(storeName, ttlMs, intervalMs, batchSize, firstTaskOnly, false);
+    }
+
+    /*
+     * inPlace: delete the expired entries from the (connected) store instead of forwarding tombstones
+     * */
+    public StoreSweeper(String storeName, long ttlMs, long intervalMs, int batchSize, boolean firstTaskOnly, boolean inPlace) {
+        this.storeName = storeName;
+        this.ttlMs = ttlMs;
+        this.intervalMs = intervalMs;
+        this.batchSize = batchSize;
+        this.firstTaskOnly = firstTaskOnly;
+        this.inPlace = inPlace;
+    }
+
+    public static <VIn, V> TransformerSupplier<String, VIn, KeyValue<String, V>> supplier(
+            String storeName, long ttlMs, long intervalMs, int batchSize, boolean firstTaskOnly) {
+        return () -> new StoreSweeper<>(storeName, ttlMs, intervalMs, batchSize, firstTaskOnly);
+    }
+
+    public static <VIn, V> TransformerSupplier<String, VIn, KeyValue<String, V>> inPlace(
+            String storeName, long ttlMs, long intervalMs, int batchSize) {
+        return () -> new StoreSweeper<>(storeName, ttlMs, intervalMs, batchSize, false, true);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void init(ProcessorContext context) {
+        this.context = context;
+        this.store = (KeyValueStore<String, ValueAndTimestamp<V>>) context.getStateStore(storeName);
+        this.evicted = context.metrics().addRateTotalSensor("geo-sweeper", storeName, "evicted", Sensor.RecordingLevel.INFO);
+        this.entries = GeoStreamMetrics.entriesSensor(context, storeName);
+        if (!firstTaskOnly || context.taskId().partition == 0) {
+            context.schedule(Duration.ofMillis(intervalMs), PunctuationType.WALL_CLOCK_TIME, this::sweep);
+        }
+    }
+
+    @Override
+    public KeyValue<String, V> transform(String key, VIn value) {
+        return null;
+    }
+
+    private void sweep(long now) {
+        final List<String> expired = new ArrayList<>();
+        String last = null;
+        int scanned = 0;
+        try (KeyValueIterator<String, ValueAndTimestamp<V>> it = cursor == null ? store.all() : store.range(cursor, MAX_KEY)) {
+            while (scanned < batchSize && it.hasNext()) {
+                final KeyValue<String, ValueAndTimestamp<V>> entry = it.next();
+                if (entry.key.equals(cursor)) {
+// range() is inclusive; this entry was checked by the previous punctuation
+                    continue;
+                }
+                scanned++;
+                last = entry.key;
+                if (entry.value != null && now - entry.value.timestamp() > ttlMs) {
+                    expired.add(entry.key);
+                }
+            }
+// continue with the next batch or start over
+            cursor = it.hasNext() ? last : null;
+        }
+        for (String key : expired) {
+            if (inPlace) {
+                store.delete(key);
+            } else {
+                context.forward(key, null);
+            }
+            evicted.record();
+        }
+        entries.record(store.approximateNumEntries(), now);
+    }
+
+    @Override
+    public void close() {
+// the task (and its partition of the store) may move to another thread or instance
+        context.metrics().removeSensor(entries);
+    }
+
+}
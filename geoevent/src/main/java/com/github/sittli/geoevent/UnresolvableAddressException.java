@@ -0,0 +1,30 @@
+package com.github.sittli.geoevent;
+
+/*
+ * the geocoder answered, but the address cannot be resolved (in contrast to a failed call, which may be retried)
+ * Note: thrown per record for known garbage addresses, hence without stack trace
+ * */
+public class UnresolvableAddressException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    static final String ZERO_RESULTS = "ZERO_RESULTS";
+    static final String INVALID_REQUEST = "INVALID_REQUEST";
+    static final String NOT_FOUND = "NOT_FOUND";
+// not an answer of the geocoder: the lookup kept failing (see GeoEventApp, lookup.max.attempts)
+    static final String LOOKUP_FAILED = "LOOKUP_FAILED";
+// not an answer of the geocoder: no response to the re-issued requests (see OutstandingRequestTransformer, geo.lookup.max.reissues)
+    static final String LOOKUP_TIMEOUT = "LOOKUP_TIMEOUT";
+
+    private final String reason;
+
+    public UnresolvableAddressException(String reason) {
+        super(reason, null, false, false);
+        this.reason = reason;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+}
@@ -0,0 +1,315 @@
+package com.github.sittli.geoevent;
+
+import com.github.sittli.geodata.Event;
+import com.github.sittli.geodata.EventEnriched;
+import com.github.sittli.geodata.EventFailed;
+import com.github.sittli.geodata.EventRequest;
+import com.github.sittli.geodata.EventResponse;
+import io.confluent.kafka.streams.serdes.avro.SpecificAvroSerde;
+import org.apache.avro.specific.SpecificRecord;
+import org.apache.kafka.common.serialization.Serdes;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.streams.KeyValue;
+import org.apache.kafka.streams.StreamsConfig;
+import org.apache.kafka.streams.TestInputTopic;
+import org.apache.kafka.streams.TestOutputTopic;
+import org.apache.kafka.streams.TopologyTestDriver;
+import org.apache.kafka.streams.state.KeyValueIterator;
+import org.apache.kafka.streams.state.ValueAndTimestamp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * GeoStreamApp's topology in both store modes (TopologyTestDriver, mock schema registry)
+ * - hit: an event whose address is in the geo data is enriched right away
+ * - miss: all events of an unknown address are pended, one lookup request is issued; the response releases them in order
+ * - unresolvable: the failure releases the pending events to the failed topic, later events are short-circuited
+ * - the stores hold the generated (specific) classes; resolved geo data turns later events of the address into hits
+ * */
+@RunWith(Parameterized.class)
+public class GeoStreamAppTest {
+
+    private static final String MOCK_SCHEMA_REGISTRY_URL = "mock://geo-stream-app-test";
+
+    private static final String RATHAUSMARKT = "1 hamburg rathausmarkt";
+    private static final String JUNGFERNSTIEG = "7 hamburg jungfernstieg";
+
+    @Parameterized.Parameters(name = "{0}")
+    public static Collection<Object[]> storeModes() {
+        return Arrays.asList(new Object[]{"global"}, new Object[]{"partitioned"});
+    }
+
+    private final String storeMode;
+
+    private TopologyTestDriver driver;
+    private TestInputTopic<String, Event> eventTopic;
+    private TestInputTopic<String, EventEnriched> storeInputTopic;
+    private TestInputTopic<String, EventResponse> responseTopic;
+    private TestInputTopic<String, EventFailed> unresolvableTopic;
+    private TestOutputTopic<String, EventEnriched> enrichedTopic;
+    private TestOutputTopic<String, EventEnriched> storeTopic;
+    private TestOutputTopic<String, EventRequest> lookupTopic;
+    private TestOutputTopic<String, EventFailed> failedTopic;
+    private TestOutputTopic<String, EventEnriched> pendingTopic;
+
+    public GeoStreamAppTest(String storeMode) {
+        this.storeMode = storeMode;
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        final Properties cfg = new Properties();
+        cfg.put(StreamsConfig.APPLICATION_ID_CONFIG, "geo-streams-test");
+        cfg.put(StreamsConfig.BOOTSTRAP_SERVERS_CONFIG, "dummy:9092");
+        cfg.put(StreamsConfig.STATE_DIR_CONFIG, Files.createTempDirectory("geo-test").toString());
+        cfg.put(StreamsConfig.DEFAULT_KEY_SERDE_CLASS_CONFIG, Serdes.String().getClass());
+        cfg.put(StreamsConfig.DEFAULT_VALUE_SERDE_CLASS_CONFIG, SpecificAvroSerde.class);
+        cfg.put(StreamsConfig.TOPOLOGY_OPTIMIZATION, StreamsConfig.OPTIMIZE);
+        cfg.put("schema.registry.url", MOCK_SCHEMA_REGISTRY_URL);
+        cfg.put(GeoStreamApp.STORE_MODE_CONFIG, storeMode);
+        driver = new TopologyTestDriver(GeoStreamApp.buildTopology(cfg, serdeConfig()), cfg);
+
+        final StringSerializer keySerializer = new StringSerializer();
+        final StringDeserializer keyDeserializer = new StringDeserializer();
+        eventTopic = driver.createInputTopic(GeoStreamApp.GEO_EVENTDATA_TOPIC, keySerializer, GeoStreamAppTest.<Event>serde().serializer());
+        storeInputTopic = driver.createInputTopic(GeoStreamApp.GEO_EVENTDATA_STORE_TOPIC, keySerializer,
+                GeoStreamAppTest.<EventEnriched>serde().serializer());
+        responseTopic = driver.createInputTopic(GeoStreamApp.GEO_EVENTDATA_RESPONSE_TOPIC, keySerializer,
+                GeoStreamAppTest.<EventResponse>serde().serializer());
+        unresolvableTopic = driver.createInputTopic(GeoStreamApp.GEO_EVENTDATA_UNRESOLVABLE_TOPIC, keySerializer,
+                GeoStreamAppTest.<EventFailed>serde().serializer());
+        enrichedTopic = driver.createOutputTopic(GeoStreamApp.GEO_EVENTDATA_ENRICHED_TOPIC, keyDeserializer,
+                GeoStreamAppTest.<EventEnriched>serde().deserializer());
+        storeTopic = driver.createOutputTopic(GeoStreamApp.GEO_EVENTDATA_STORE_TOPIC, keyDeserializer,
+                GeoStreamAppTest.<EventEnriched>serde().deserializer());
+        lookupTopic = driver.createOutputTopic(GeoStreamApp.GEO_EVENTDATA_REQUEST_TOPIC, keyDeserializer,
+                GeoStreamAppTest.<EventRequest>serde().deserializer());
+        failedTopic = driver.createOutputTopic(GeoStreamApp.GEO_EVENTDATA_FAILED_TOPIC, keyDeserializer,
+                GeoStreamAppTest.<EventFailed>serde().deserializer());
+        pendingTopic = driver.createOutputTopic(GeoStreamApp.GEO_EVENTDATA_PENDING_STORE_TOPIC, keyDeserializer,
+                GeoStreamAppTest.<EventEnriched>serde().deserializer());
+
+// the geo data of one known address
+        storeInputTopic.pipeInput(RATHAUSMARKT, new EventEnriched("Rathausmarkt 1, 20095 Hamburg", "init", 53.5503, 9.9920));
+        storeTopic.readRecordsToList();
+    }
+
+    @After
+    public void tearDown() {
+        driver.close();
+    }
+
+    @Test
+    public void hitIsEnrichedWithoutLookup() {
+        eventTopic.pipeInput(null, new Event("Hamburg, Rathausmarkt 1", "storm"));
+
+        assertEquals(Collections.singletonList(KeyValue.pair(RATHAUSMARKT,
+                new EventEnriched("Hamburg, Rathausmarkt 1", "storm", 53.5503, 9.9920))), enrichedTopic.readKeyValuesToList());
+        assertTrue(lookupTopic.isEmpty());
+        assertTrue(pendingTopicRecords().isEmpty());
+        assertTrue(storeTopic.isEmpty());
+        assertTrue(failedTopic.isEmpty());
+    }
+
+    @Test
+    public void missIsPendedAndReleasedByTheResponse() {
+        eventTopic.pipeInput(null, new Event("Jungfernstieg 7, Hamburg", "storm"));
+        eventTopic.pipeInput(null, new Event("hamburg, JUNGFERNSTIEG 7", "flood"));
+
+// both events are pended, but only the first one issues a lookup
+        final List<KeyValue<String, EventEnriched>> pended = Arrays.asList(
+                KeyValue.pair(JUNGFERNSTIEG, new EventEnriched("Jungfernstieg 7, Hamburg", "storm", null, null)),
+                KeyValue.pair(JUNGFERNSTIEG, new EventEnriched("hamburg, JUNGFERNSTIEG 7", "flood", null, null)));
+        assertEquals(pended, bufferedEvents(JUNGFERNSTIEG));
+        assertEquals(global() ? pended : Collections.emptyList(), pendingTopicRecords());
+        assertEquals(Collections.singletonList(KeyValue.pair(JUNGFERNSTIEG, new EventRequest("Jungfernstieg 7, Hamburg"))),
+                lookupTopic.readKeyValuesToList());
+        assertTrue(enrichedTopic.isEmpty());
+
+        responseTopic.pipeInput(JUNGFERNSTIEG, new EventResponse("Jungfernstieg 7, Hamburg", 53.5531, 9.9925));
+
+// released in arrival order, each with its own spelling of the address
+        final List<KeyValue<String, EventEnriched>> released = Arrays.asList(
+                KeyValue.pair(JUNGFERNSTIEG, new EventEnriched("Jungfernstieg 7, Hamburg", "storm", 53.5531, 9.9925)),
+                KeyValue.pair(JUNGFERNSTIEG, new EventEnriched("hamburg, JUNGFERNSTIEG 7", "flood", 53.5531, 9.9925)));
+        assertEquals(released, enrichedTopic.readKeyValuesToList());
+        assertEquals(released, storeTopic.readKeyValuesToList());
+        assertTrue(failedTopic.isEmpty());
+
+// the released events were removed from the buffer: a second response releases nothing
+        responseTopic.pipeInput(JUNGFERNSTIEG, new EventResponse("Jungfernstieg 7, Hamburg", 53.5531, 9.9925));
+        assertTrue(enrichedTopic.isEmpty());
+    }
+
+    @Test
+    public void fullBufferDropsTheOldestEventAndMetersIt() {
+// the default cap is 100 events per address
+        for (int i = 0; i <= 100; i++) {
+            eventTopic.pipeInput(null, new Event("Jungfernstieg 7, Hamburg", "storm-" + i));
+        }
+
+        final List<KeyValue<String, Object>> buffered = bufferedEvents(JUNGFERNSTIEG);
+        assertEquals(100, buffered.size());
+        assertEquals(new EventEnriched("Jungfernstieg 7, Hamburg", "storm-1", null, null), buffered.get(0).value);
+        final double droppedTotal = driver.metrics().entrySet().stream()
+                .filter(metric -> metric.getKey().name().equals("pending-dropped-total"))
+                .mapToDouble(metric -> (Double) metric.getValue().metricValue())
+                .sum();
+        assertEquals(1.0, droppedTotal, 0.0);
+    }
+
+    @Test
+    public void responseWithoutPendingEventsReleasesNothing() {
+        responseTopic.pipeInput(JUNGFERNSTIEG, new EventResponse("Jungfernstieg 7, Hamburg", 53.5531, 9.9925));
+
+        assertTrue(enrichedTopic.isEmpty());
+        assertTrue(storeTopic.isEmpty());
+        assertTrue(lookupTopic.isEmpty());
+    }
+
+    @Test
+    public void unresolvableAddressFailsPendingAndLaterEvents() {
+        eventTopic.pipeInput(null, new Event("Jungfernstieg 7, Hamburg", "storm"));
+        assertEquals(1, lookupTopic.readKeyValuesToList().size());
+
+        final long reported = System.currentTimeMillis();
+        unresolvableTopic.pipeInput(JUNGFERNSTIEG, new EventFailed("Jungfernstieg 7, Hamburg", null, "ZERO_RESULTS", reported));
+
+        assertEquals(Collections.singletonList(KeyValue.pair(JUNGFERNSTIEG,
+                new EventFailed("Jungfernstieg 7, Hamburg", "storm", "ZERO_RESULTS", reported))), failedTopic.readKeyValuesToList());
+
+        pendingTopicRecords();
+        eventTopic.pipeInput(null, new Event("hamburg, JUNGFERNSTIEG 7", "flood"));
+
+// short-circuited by the negative cache: no further lookup, nothing buffered
+        assertEquals(Collections.singletonList(KeyValue.pair(JUNGFERNSTIEG,
+                new EventFailed("hamburg, JUNGFERNSTIEG 7", "flood", "ZERO_RESULTS", reported))), failedTopic.readKeyValuesToList());
+        assertTrue(lookupTopic.isEmpty());
+        assertTrue(enrichedTopic.isEmpty());
+        assertTrue(bufferedEvents(JUNGFERNSTIEG).isEmpty());
+// with a global store the check follows the pending topic (the repartitioning of the miss path), so the event passed it
+        assertEquals(global() ? Collections.singletonList(KeyValue.pair(JUNGFERNSTIEG,
+                new EventEnriched("hamburg, JUNGFERNSTIEG 7", "flood", null, null))) : Collections.emptyList(),
+                pendingTopicRecords());
+    }
+
+    @Test
+    public void expiredUnresolvableAddressIsSweptAndLookedUpAgain() {
+        final TestOutputTopic<String, EventFailed> unresolvableOutTopic = driver.createOutputTopic(
+                GeoStreamApp.GEO_EVENTDATA_UNRESOLVABLE_TOPIC, new StringDeserializer(), GeoStreamAppTest.<EventFailed>serde().deserializer());
+        final Instant reported = Instant.now().minus(Duration.ofHours(2));
+        unresolvableTopic.pipeInput(JUNGFERNSTIEG, new EventFailed("Jungfernstieg 7, Hamburg", null, "ZERO_RESULTS", reported.toEpochMilli()),
+                reported);
+
+// older than the ttl (1 hour): evicted by the next sweep
+        driver.advanceWallClockTime(Duration.ofMinutes(1));
+        assertEquals(Collections.singletonList(KeyValue.pair(JUNGFERNSTIEG, null)), unresolvableOutTopic.readKeyValuesToList());
+        assertEquals(null, driver.getTimestampedKeyValueStore(GeoStreamApp.UNRESOLVABLE_STORE).get(JUNGFERNSTIEG));
+        assertTrue(failedTopic.isEmpty());
+
+        eventTopic.pipeInput(null, new Event("Jungfernstieg 7, Hamburg", "storm"));
+        assertEquals(Collections.singletonList(KeyValue.pair(JUNGFERNSTIEG, new EventRequest("Jungfernstieg 7, Hamburg"))),
+                lookupTopic.readKeyValuesToList());
+        assertTrue(failedTopic.isEmpty());
+    }
+
+    @Test
+    public void unansweredRequestIsReissuedAndGivenUp() {
+        eventTopic.pipeInput(null, new Event("Jungfernstieg 7, Hamburg", "storm"));
+        assertEquals(1, lookupTopic.readKeyValuesToList().size());
+
+// re-issued after every timeout (1 minute; the request was issued after the start of the driver's wall clock), at most 3 times
+        final Duration timeout = Duration.ofMinutes(1).plusSeconds(1);
+        for (int i = 0; i < 3; i++) {
+            driver.advanceWallClockTime(timeout);
+            assertEquals(Collections.singletonList(KeyValue.pair(JUNGFERNSTIEG, new EventRequest("Jungfernstieg 7, Hamburg"))),
+                    lookupTopic.readKeyValuesToList());
+        }
+        assertTrue(failedTopic.isEmpty());
+
+// then given up: the pending event is released as failed
+        driver.advanceWallClockTime(timeout);
+        assertTrue(lookupTopic.isEmpty());
+        final List<KeyValue<String, EventFailed>> failed = failedTopic.readKeyValuesToList();
+        assertEquals(1, failed.size());
+        assertEquals("storm", failed.get(0).value.getEventtype());
+        assertEquals(UnresolvableAddressException.LOOKUP_TIMEOUT, failed.get(0).value.getReason());
+        assertEquals(null, driver.getTimestampedKeyValueStore(OutstandingRequestTransformer.OUTSTANDING_STORE).get(JUNGFERNSTIEG));
+    }
+
+    @Test
+    public void resolvedGeoDataIsStoredAsGeneratedClass() {
+        eventTopic.pipeInput(null, new Event("Mönckebergstraße 7, Hamburg", "storm"));
+        final String key = lookupTopic.readKeyValue().key;
+        assertEquals("7 hamburg moenckebergstrasse", key);
+        responseTopic.pipeInput(key, new EventResponse("Mönckebergstraße 7, Hamburg", 53.550341234567891, 9.999912345678912));
+        enrichedTopic.readRecordsToList();
+
+// lat / lng are passed as doubles (no string round trip), the address as java.lang.String (stringType=String)
+        final Object stored = driver.getTimestampedKeyValueStore(global()
+                ? GeoStreamApp.GEODATA_GLOBAL_STORE : GeoStreamApp.GEODATA_STORE).get(key).value();
+        assertTrue(stored instanceof EventEnriched);
+        assertEquals(new EventEnriched("Mönckebergstraße 7, Hamburg", "storm", 53.550341234567891, 9.999912345678912), stored);
+
+// the next event of the address is a hit
+        eventTopic.pipeInput(null, new Event("Moenckebergstrasse 7, Hamburg", "flood"));
+        assertEquals(Collections.singletonList(KeyValue.pair(key,
+                new EventEnriched("Moenckebergstrasse 7, Hamburg", "flood", 53.550341234567891, 9.999912345678912))),
+                enrichedTopic.readKeyValuesToList());
+        assertTrue(lookupTopic.isEmpty());
+    }
+
+    private boolean global() {
+        return "global".equals(storeMode);
+    }
+
+    // the pending topic is the repartitioning of the miss path with a global store, the partitioned topology does not know it
+    private List<KeyValue<String, EventEnriched>> pendingTopicRecords() {
+        if (global()) {
+            return pendingTopic.readKeyValuesToList();
+        }
+        assertThrows(IllegalArgumentException.class, pendingTopic::isEmpty);
+        return Collections.emptyList();
+    }
+
+    // the events buffered for the address, in arrival order
+    private List<KeyValue<String, Object>> bufferedEvents(String address) {
+        final List<KeyValue<String, Object>> buffered = new ArrayList<>();
+        try (KeyValueIterator<String, ValueAndTimestamp<Object>> it = driver.<String, Object>getTimestampedKeyValueStore(
+                PendingEventBuffer.PENDING_STORE).range(PendingEventBuffer.from(address), PendingEventBuffer.to(address))) {
+            it.forEachRemaining(entry -> buffered.add(KeyValue.pair(address, entry.value.value())));
+        }
+        return buffered;
+    }
+
+    private static Map<String, String> serdeConfig() {
+        return Collections.singletonMap("schema.registry.url", MOCK_SCHEMA_REGISTRY_URL);
+    }
+
+    private static <T extends SpecificRecord> SpecificAvroSerde<T> serde() {
+        final SpecificAvroSerde<T> serde = new SpecificAvroSerde<>();
+        serde.configure(serdeConfig(), false);
+        return serde;
+    }
+
+}
@@ -200,12 +200,15 @@ sleep 90
 function init_microservice() {
 KSTREAMS_DEMO_T_GEO_REQUEST="${DEMO_TOPIC_PREFIX}_eventdata_lookup"
 KSTREAMS_DEMO_T_GEO_RESPONSE="${DEMO_TOPIC_PREFIX}_eventdata_response"
+KSTREAMS_DEMO_T_GEO_UNRESOLVABLE="${DEMO_TOPIC_PREFIX}_eventdata_unresolvable"
 KSTREAMS_DEMO_CG_MS="${DEMO_TOPIC_PREFIX}-lookup-ms"
 
 ccloud kafka topic create $KSTREAMS_DEMO_T_GEO_REQUEST --partitions 1
 echo "Created topic ${KSTREAMS_DEMO_T_GEO_REQUEST} " $?
 ccloud kafka topic create $KSTREAMS_DEMO_T_GEO_RESPONSE --partitions 1
 echo "Created topic ${KSTREAMS_DEMO_T_GEO_RESPONSE} " $?
+ccloud kafka topic create $KSTREAMS_DEMO_T_GEO_UNRESOLVABLE --partitions 1
+echo "Created topic ${KSTREAMS_DEMO_T_GEO_UNRESOLVABLE} " $?
 ccloud kafka acl create --allow --operation READ --service-account $KSTREAMS_DEMO_SVC_ACCT_ID --cluster $CC_CLUSTER_ID --consumer-group $KSTREAMS_DEMO_CG_MS
 ccloud kafka acl create --allow --operation WRITE --service-account $KSTREAMS_DEMO_SVC_ACCT_ID --cluster $CC_CLUSTER_ID --consumer-group $KSTREAMS_DEMO_CG_MS
 ccloud kafka acl create --allow --operation DESCRIBE --service-account $KSTREAMS_DEMO_SVC_ACCT_ID --cluster $CC_CLUSTER_ID --consumer-group $KSTREAMS_DEMO_CG_MS
@@ -223,15 +226,19 @@ function init_streaming_app() {
   KSTREAMS_DEMO_S_ACTIVE="${DEMO_TOPIC_PREFIX}_eventdata_store"
   KSTREAMS_DEMO_S_PENDING="${DEMO_TOPIC_PREFIX}_eventdata_pending_store"
   KSTREAMS_DEMO_T_FINAL="${DEMO_TOPIC_PREFIX}_eventdata_enriched"
+  KSTREAMS_DEMO_T_FAILED="${DEMO_TOPIC_PREFIX}_eventdata_failed"
   KSTREAMS_DEMO_CG_APP="${DEMO_TOPIC_PREFIX}-streams-app"
 
   ccloud kafka topic create $KSTREAMS_DEMO_T_INITIAL --partitions 1
   echo "Created topic ${KSTREAMS_DEMO_T_INITIAL} " $?
   ccloud kafka topic create $KSTREAMS_DEMO_T_FINAL --partitions 1
   echo "Created topic ${KSTREAMS_DEMO_T_FINAL} " $?
+  ccloud kafka topic create $KSTREAMS_DEMO_T_FAILED --partitions 1
+  echo "Created topic ${KSTREAMS_DEMO_T_FAILED} " $?
   ccloud kafka topic create $KSTREAMS_DEMO_S_ACTIVE --partitions 1 --config cleanup.policy=compact
   echo "Created topic ${KSTREAMS_DEMO_S_ACTIVE} " $?
-  ccloud kafka topic create $KSTREAMS_DEMO_S_PENDING --partitions 1 --config cleanup.policy=compact
+  # not compacted: it carries every pending event of an address, not only the last one
+  ccloud kafka topic create $KSTREAMS_DEMO_S_PENDING --partitions 1 --config cleanup.policy=delete
   echo "Created topic ${KSTREAMS_DEMO_S_PENDING} " $?
   ccloud kafka acl create --allow --operation READ --service-account $KSTREAMS_DEMO_SVC_ACCT_ID --cluster $CC_CLUSTER_ID --consumer-group $KSTREAMS_DEMO_CG_APP
   #ccloud kafka acl create --allow --operation WRITE --service-account $KSTREAMS_DEMO_SVC_ACCT_ID --cluster $CC_CLUSTER_ID --consumer-group $KSTREAMS_DEMO_CG_APP
@@ -300,11 +307,13 @@ fi
 # schema for microservice
   ccloud schema-registry schema create --subject geo_eventdata_lookup-value --schema $DEMO_SCHEMA_DIR/geodata_event_request.avsc
   ccloud schema-registry schema create --subject geo_eventdata_response-value --schema $DEMO_SCHEMA_DIR/geodata_event_response.avsc
+  ccloud schema-registry schema create --subject geo_eventdata_unresolvable-value --schema $DEMO_SCHEMA_DIR/geodata_event_failed.avsc
 # schema for streaming app
   ccloud schema-registry schema create --subject geo_eventdata-value --schema $DEMO_SCHEMA_DIR/geodata_event.avsc
   ccloud schema-registry schema create --subject geo_eventdata_store-value --schema $DEMO_SCHEMA_DIR/geodata_event_enriched.avsc
   ccloud schema-registry schema create --subject geo_eventdata_pending_store-value --schema $DEMO_SCHEMA_DIR/geodata_event_enriched.avsc
   ccloud schema-registry schema create --subject geo_eventdata_enriched-value --schema $DEMO_SCHEMA_DIR/geodata_event_enriched.avsc
+  ccloud schema-registry schema create --subject geo_eventdata_failed-value --schema $DEMO_SCHEMA_DIR/geodata_event_failed.avsc
   return 0
 }
 
@@ -361,6 +370,10 @@ function init_scripts() {
   touch $DEMO_OUT_FILE
   DEMO_TOPIC=${KSTREAMS_DEMO_T_FINAL}
   init_kafkacat_consume_script || exit 1
+  DEMO_OUT_FILE=$DEMO_SCRIPT_DIR/geo_eventdata_failed.sh
+  touch $DEMO_OUT_FILE
+  DEMO_TOPIC=${KSTREAMS_DEMO_T_FAILED}
+  init_kafkacat_consume_script || exit 1
   DEMO_OUT_FILE=$DEMO_SCRIPT_DIR/geo_eventdata_produce.sh
   touch $DEMO_OUT_FILE
   DEMO_TOPIC=${KSTREAMS_DEMO_T_INITIAL}